@@ -15,13 +15,18 @@
  */
 package com.abubusoft.testing.compile;
 
-import static com.google.common.base.Charsets.UTF_8;
 import static javax.tools.JavaFileObject.Kind.SOURCE;
 
+import com.abubusoft.testing.compile.CompileTester.GeneratedFileConsumer;
+import com.abubusoft.testing.compile.InMemoryJavaFileManager.OutputStorage;
 import com.google.common.base.Function;
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMultiset;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimaps;
 import com.sun.source.tree.CompilationUnitTree;
@@ -31,7 +36,6 @@ import com.sun.tools.javac.api.JavacTool;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.Locale;
 
 import javax.annotation.processing.Processor;
 import javax.tools.Diagnostic;
@@ -39,7 +43,7 @@ import javax.tools.DiagnosticCollector;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaCompiler.CompilationTask;
 import javax.tools.JavaFileObject;
-import javax.tools.ToolProvider;
+import javax.tools.StandardJavaFileManager;
 
 /**
  * Utilities for performing compilation with {@code javac}.
@@ -49,6 +53,17 @@ import javax.tools.ToolProvider;
 final class Compilation {
   private Compilation() {}
 
+  /** The last stage of {@code javac} that a compilation runs. */
+  enum Stage {
+    /**
+     * Runs annotation processing, attribution and flow analysis, which report every error in the
+     * sources, but neither generates nor writes class files.
+     */
+    ANALYZE,
+    /** Runs every stage, up to writing class files. */
+    GENERATE
+  }
+
   /**
    * Compile {@code sources} using {@code processors}.
    *
@@ -56,26 +71,53 @@ final class Compilation {
    */
   static Result compile(Iterable<? extends Processor> processors,
       Iterable<String> options, Iterable<? extends JavaFileObject> sources) {
-    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-    if (compiler == null) {
-      throw new IllegalStateException("Java Compiler is not present. "
-          + "May be, you need to include tools.jar on your dependency list.");
+    return compile(processors, options, sources, ImmutableList.<InMemoryClasspath>of(),
+        Optional.<GeneratedFileConsumer>absent(), OutputStorage.HEAP, Stage.GENERATE,
+        DiagnosticRetention.ALL);
+  }
+
+  /**
+   * Compile {@code sources} using {@code processors} against {@code classpaths} and the class
+   * path of the compiler, handing each generated file to {@code generatedFileConsumer} as soon
+   * as it has been written, keeping the contents of generated files as {@code outputStorage}
+   * says, running the compilation up to and including {@code lastStage}, and keeping the
+   * diagnostics that {@code diagnosticRetention} asks for.
+   *
+   * @throws RuntimeException if compilation fails.
+   */
+  static Result compile(Iterable<? extends Processor> processors,
+      Iterable<String> options, Iterable<? extends JavaFileObject> sources,
+      Iterable<InMemoryClasspath> classpaths,
+      Optional<GeneratedFileConsumer> generatedFileConsumer, OutputStorage outputStorage,
+      Stage lastStage, DiagnosticRetention diagnosticRetention) {
+    JavaCompiler compiler = CompilerPool.systemCompiler();
+    DiagnosticRetention.Collector diagnosticCollector = diagnosticRetention.newCollector();
+    StandardJavaFileManager standardFileManager = CompilerPool.lease(diagnosticCollector);
+    try {
+      InMemoryJavaFileManager fileManager = new InMemoryJavaFileManager(
+          standardFileManager, classpaths, generatedFileConsumer, outputStorage);
+      CompilationTask task = compiler.getTask(
+          null, // explicitly use the default because old versions of javac log output on stderr
+          fileManager,
+          diagnosticCollector,
+          ImmutableList.copyOf(options),
+          ImmutableSet.<String>of(),
+          sources);
+      task.setProcessors(processors);
+      boolean successful;
+      if (lastStage == Stage.GENERATE) {
+        successful = task.call();
+      } else {
+        ((JavacTask) task).analyze();
+        successful = diagnosticCollector.getCounts().count(Diagnostic.Kind.ERROR) == 0;
+      }
+      return new Result(successful, diagnosticCollector.getDiagnosticsByKind(),
+          diagnosticCollector.getCounts(), fileManager.getOutputFiles());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      CompilerPool.release(standardFileManager, options);
     }
-    DiagnosticCollector<JavaFileObject> diagnosticCollector =
-        new DiagnosticCollector<JavaFileObject>();
-    InMemoryJavaFileManager fileManager = new InMemoryJavaFileManager(
-        compiler.getStandardFileManager(diagnosticCollector, Locale.getDefault(), UTF_8));
-    CompilationTask task = compiler.getTask(
-        null, // explicitly use the default because old versions of javac log some output on stderr
-        fileManager,
-        diagnosticCollector,
-        ImmutableList.copyOf(options),
-        ImmutableSet.<String>of(),
-        sources);
-    task.setProcessors(processors);
-    boolean successful = task.call();
-    return new Result(successful, sortDiagnosticsByKind(diagnosticCollector.getDiagnostics()),
-        fileManager.getOutputFiles());
   }
 
   /**
@@ -83,35 +125,44 @@ final class Compilation {
    * <b>does not</b> compile the sources.
    */
   static ParseResult parse(Iterable<? extends JavaFileObject> sources) {
-    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    JavaCompiler compiler = CompilerPool.systemCompiler();
     DiagnosticCollector<JavaFileObject> diagnosticCollector =
         new DiagnosticCollector<JavaFileObject>();
-    InMemoryJavaFileManager fileManager = new InMemoryJavaFileManager(
-        compiler.getStandardFileManager(diagnosticCollector, Locale.getDefault(), UTF_8));
-    JavacTask task = ((JavacTool) compiler).getTask(
-        null, // explicitly use the default because old versions of javac log some output on stderr
-        fileManager,
-        diagnosticCollector,
-        ImmutableSet.<String>of(),
-        ImmutableSet.<String>of(),
-        sources);
+    StandardJavaFileManager standardFileManager = CompilerPool.lease(diagnosticCollector);
     try {
+      InMemoryJavaFileManager fileManager = new InMemoryJavaFileManager(standardFileManager);
+      JavacTask task = ((JavacTool) compiler).getTask(
+          null, // explicitly use the default because old versions of javac log output on stderr
+          fileManager,
+          diagnosticCollector,
+          ImmutableSet.<String>of(),
+          ImmutableSet.<String>of(),
+          sources);
       Iterable<? extends CompilationUnitTree> parsedCompilationUnits = task.parse();
       List<Diagnostic<? extends JavaFileObject>> diagnostics = diagnosticCollector.getDiagnostics();
-      for (Diagnostic<?> diagnostic : diagnostics) {
-        if (Diagnostic.Kind.ERROR == diagnostic.getKind()) {
-          throw new IllegalStateException("error while parsing:\n"
-              + Diagnostics.toString(diagnostics));
-        }
+      if (hasErrors(diagnostics)) {
+        throw new IllegalStateException("error while parsing:\n"
+            + Diagnostics.toString(diagnostics));
       }
       return new ParseResult(sortDiagnosticsByKind(diagnostics), parsedCompilationUnits,
           Trees.instance(task));
     } catch (IOException e) {
       throw new RuntimeException(e);
+    } finally {
+      CompilerPool.release(standardFileManager, ImmutableSet.<String>of());
     }
   }
 
-  private static ImmutableListMultimap<Diagnostic.Kind, Diagnostic<? extends JavaFileObject>>
+  private static boolean hasErrors(Iterable<? extends Diagnostic<?>> diagnostics) {
+    for (Diagnostic<?> diagnostic : diagnostics) {
+      if (Diagnostic.Kind.ERROR == diagnostic.getKind()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static ImmutableListMultimap<Diagnostic.Kind, Diagnostic<? extends JavaFileObject>>
       sortDiagnosticsByKind(Iterable<Diagnostic<? extends JavaFileObject>> diagnostics) {
     return Multimaps.index(diagnostics,
         new Function<Diagnostic<?>, Diagnostic.Kind>() {
@@ -165,19 +216,39 @@ final class Compilation {
     private final ImmutableListMultimap<Diagnostic.Kind, Diagnostic<? extends JavaFileObject>>
         diagnostics;
     private final ImmutableListMultimap<JavaFileObject.Kind, JavaFileObject> generatedFilesByKind;
+    private final ImmutableMultiset<Diagnostic.Kind> diagnosticCounts;
+    private final Supplier<DiagnosticIndex> diagnosticIndex;
 
     Result(boolean successful,
         ImmutableListMultimap<Diagnostic.Kind, Diagnostic<? extends JavaFileObject>> diagnostics,
         Iterable<JavaFileObject> generatedFiles) {
+      this(successful, diagnostics, ImmutableMultiset.copyOf(diagnostics.keys()), generatedFiles);
+    }
+
+    /**
+     * Creates a result that kept only some of the diagnostics reported, {@code diagnosticCounts}
+     * being the number of each kind that were reported.
+     */
+    Result(boolean successful,
+        final ImmutableListMultimap<Diagnostic.Kind, Diagnostic<? extends JavaFileObject>>
+            diagnostics,
+        ImmutableMultiset<Diagnostic.Kind> diagnosticCounts,
+        Iterable<JavaFileObject> generatedFiles) {
       this.successful = successful;
       this.diagnostics = diagnostics;
+      this.diagnosticCounts = diagnosticCounts;
+      this.diagnosticIndex = Suppliers.memoize(new Supplier<DiagnosticIndex>() {
+        @Override public DiagnosticIndex get() {
+          return new DiagnosticIndex(diagnostics);
+        }
+      });
       this.generatedFilesByKind = Multimaps.index(generatedFiles,
           new Function<JavaFileObject, JavaFileObject.Kind>() {
             @Override public JavaFileObject.Kind apply(JavaFileObject input) {
               return input.getKind();
             }
           });
-      if (!successful && diagnostics.get(Diagnostic.Kind.ERROR).isEmpty()) {
+      if (!successful && diagnosticCounts.count(Diagnostic.Kind.ERROR) == 0) {
         throw new CompilationFailureException();
       }
     }
@@ -191,6 +262,27 @@ final class Compilation {
       return diagnostics;
     }
 
+    /**
+     * Returns the number of diagnostics of {@code kind} that were reported, which may be more
+     * than {@link #diagnosticsByKind} kept.
+     */
+    int diagnosticCount(Diagnostic.Kind kind) {
+      return diagnosticCounts.count(kind);
+    }
+
+    /** Returns the number of diagnostics of each kind that were reported. */
+    ImmutableMultiset<Diagnostic.Kind> diagnosticCounts() {
+      return diagnosticCounts;
+    }
+
+    /**
+     * Returns the diagnostics indexed for assertions. The index is built when first asked for, and
+     * shared by every assertion about this result.
+     */
+    DiagnosticIndex diagnosticIndex() {
+      return diagnosticIndex.get();
+    }
+
     ImmutableListMultimap<JavaFileObject.Kind, JavaFileObject> generatedFilesByKind() {
       return generatedFilesByKind;
     }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.abubusoft.testing.compile.JavaSourcesSubjectFactory.javaSources;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.truth.Truth.assertAbout;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.processing.Processor;
+import javax.tools.JavaFileObject;
+
+/**
+ * Compiles many independent sets of sources at once, spreading the compilations over a bounded
+ * number of threads. Each {@linkplain #add added} case can then be tested with the usual fluent
+ * API: <pre>   {@code
+ *
+ *   CompilationBatch batch = new CompilationBatch();
+ *   CompilationBatch.Case first = batch.add(ImmutableList.of(firstSource),
+ *       ImmutableList.of(new MyAnnotationProcessor()), ImmutableList.<String>of());
+ *   CompilationBatch.Case second = batch.add(ImmutableList.of(secondSource),
+ *       ImmutableList.of(new MyAnnotationProcessor()), ImmutableList.<String>of());
+ *   batch.compile();
+ *
+ *   first.assertThat().compilesWithoutError();
+ *   second.assertThat().failsToCompile().withErrorContaining("No types named HelloWorld!");
+ * }</pre>
+ *
+ * <p>Cases are compiled concurrently, so processor instances must not be shared between cases.
+ * Any exception thrown while compiling a case is rethrown when that case is tested.
+ */
+public final class CompilationBatch {
+  private final int parallelism;
+  private final List<Case> pendingCases = new ArrayList<Case>();
+
+  /** Creates a batch that compiles on as many threads as there are available processors. */
+  public CompilationBatch() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /** Creates a batch that compiles on at most {@code parallelism} threads. */
+  public CompilationBatch(int parallelism) {
+    checkArgument(parallelism > 0, "parallelism must be positive: %s", parallelism);
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Adds a compilation of {@code sources} with {@code processors} to the batch. As with
+   * {@link JavaSourcesSubject}, {@code -Xlint} is passed to the compiler before {@code options}.
+   */
+  public synchronized Case add(Iterable<? extends JavaFileObject> sources,
+      Iterable<? extends Processor> processors, Iterable<String> options) {
+    Case newCase = new Case(ImmutableList.copyOf(sources), ImmutableList.copyOf(processors),
+        ImmutableList.<String>builder().add("-Xlint").addAll(options).build());
+    pendingCases.add(newCase);
+    return newCase;
+  }
+
+  /**
+   * Compiles every case added since the last call and waits for all of them to finish. Cases
+   * that are tested before this method is called are compiled on demand.
+   */
+  public synchronized void compile() {
+    if (pendingCases.isEmpty()) {
+      return;
+    }
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(parallelism, pendingCases.size()));
+    try {
+      for (final Case pendingCase : pendingCases) {
+        pendingCase.result = executor.submit(new Callable<Compilation.Result>() {
+          @Override public Compilation.Result call() {
+            return Compilation.compile(
+                pendingCase.processors, pendingCase.options, pendingCase.sources);
+          }
+        });
+      }
+      pendingCases.clear();
+    } finally {
+      // already submitted compilations still run to completion
+      executor.shutdown();
+    }
+  }
+
+  /** One compilation in a {@link CompilationBatch}. */
+  public final class Case {
+    private final ImmutableList<JavaFileObject> sources;
+    private final ImmutableList<Processor> processors;
+    private final ImmutableList<String> options;
+    private Future<Compilation.Result> result;
+
+    private Case(ImmutableList<JavaFileObject> sources, ImmutableList<Processor> processors,
+        ImmutableList<String> options) {
+      this.sources = sources;
+      this.processors = processors;
+      this.options = options;
+    }
+
+    /**
+     * Returns the root of the fluent API for testing the result of this case, waiting for its
+     * compilation to finish if necessary.
+     */
+    public CompileTester assertThat() {
+      return assertAbout(javaSources()).that(sources).precompiled(result());
+    }
+
+    /** Returns the result of this case, waiting for its compilation to finish if necessary. */
+    Compilation.Result result() {
+      Future<Compilation.Result> future;
+      synchronized (CompilationBatch.this) {
+        if (result == null) {
+          compile();
+        }
+        future = checkNotNull(result);
+      }
+      try {
+        return Uninterruptibles.getUninterruptibly(future);
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+    }
+  }
+}
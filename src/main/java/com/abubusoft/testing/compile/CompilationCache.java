@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.abubusoft.testing.compile.CompileTester.GeneratedFileConsumer;
+import com.abubusoft.testing.compile.InMemoryJavaFileManager.OutputStorage;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.annotation.processing.Processor;
+import javax.tools.JavaFileObject;
+
+/**
+ * Remembers the results of compilations so that compiling the same sources with the same options
+ * and processors again costs a hash lookup rather than a {@code javac} invocation: <pre>   {@code
+ *
+ *   private static final CompilationCache CACHE = CompilationCache.inMemory(64 << 20);
+ *
+ *   assertAbout(javaSource()).that(source)
+ *       .withCompilationCache(CACHE)
+ *       .processedWith(new MyAnnotationProcessor())
+ *       .compilesWithoutError();
+ * }</pre>
+ *
+ * <p>Compilations are keyed by the contents and URIs of the sources and of the class files of any
+ * {@link InMemoryClasspath}, the compiler options, whether class files are generated, where their
+ * contents are kept, which diagnostics are kept and the <em>classes</em> of the processors (two
+ * classes with the same name from different class loaders are different classes).
+ * Processors are therefore assumed to behave the same way for
+ * the same input whatever their state; if that isn't true of a processor, don't use a cache for
+ * compilations that involve it. On a cache hit no processor runs at all, so side effects of
+ * processing (e.g. state recorded on the processor instance) are not repeated.
+ *
+ * <p>Least recently used results are evicted once the files they generated add up to more than
+ * the cache's limit.
+ *
+ * <p>Cached results keep detached copies of their diagnostics, so that a result held by the
+ * cache doesn't keep the symbol tables and syntax trees of the compiler that produced it
+ * reachable.
+ *
+ * <p>A {@linkplain #persistent persistent} cache also stores results in a directory, so that they
+ * survive the JVM and can be shared by several test JVMs, such as the forks of a build. Results
+ * replayed from disk report the same diagnostics and generated files as the original
+ * compilation.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class CompilationCache {
+  /**
+   * A nominal weight for each result, accounting for the diagnostics and bookkeeping it retains
+   * even when it generated no files.
+   */
+  private static final int ENTRY_OVERHEAD_BYTES = 1024;
+
+  private static final HashFunction KEY_FUNCTION = Hashing.sha256();
+
+  /** The number of the next processor class that {@link #classNumbers} sees. */
+  private static final AtomicLong nextClassNumber = new AtomicLong();
+
+  /**
+   * A distinct number for each processor class, so that classes with the same name that were
+   * loaded by different class loaders (e.g. a processor reloaded by a test) never share results.
+   */
+  private static final LoadingCache<Class<?>, Long> classNumbers =
+      CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Class<?>, Long>() {
+        @Override public Long load(Class<?> type) {
+          return nextClassNumber.incrementAndGet();
+        }
+      });
+
+  private final Cache<HashCode, Compilation.Result> results;
+  private final Optional<PersistentCompilationStore> store;
+
+  private CompilationCache(long maxGeneratedBytes, Optional<PersistentCompilationStore> store) {
+    this.store = store;
+    this.results = CacheBuilder.newBuilder()
+        .maximumWeight(maxGeneratedBytes)
+        .weigher(new Weigher<HashCode, Compilation.Result>() {
+          @Override public int weigh(HashCode key, Compilation.Result result) {
+            return (int) Math.min(Integer.MAX_VALUE, ENTRY_OVERHEAD_BYTES + generatedBytes(result));
+          }
+        })
+        .build();
+  }
+
+  /**
+   * Returns a new cache that keeps results in memory for as long as the files they generated add
+   * up to no more than {@code maxGeneratedBytes}.
+   */
+  public static CompilationCache inMemory(long maxGeneratedBytes) {
+    checkArgument(maxGeneratedBytes >= 0, "maxGeneratedBytes must not be negative: %s",
+        maxGeneratedBytes);
+    return new CompilationCache(
+        maxGeneratedBytes, Optional.<PersistentCompilationStore>absent());
+  }
+
+  /**
+   * Returns a new cache that stores results in {@code directory}, deleting the least recently
+   * used ones once the directory holds more than {@code maxBytes}. Results are also kept in memory
+   * within the same limit. The directory is created if necessary and should be dedicated to the
+   * cache; a location that build tools clean, such as {@code target/}, works well.
+   *
+   * <p>Besides the sources, options and processor classes, stored results are keyed by the Java
+   * version and the contents of the class path entries the processors were loaded from. Files
+   * that options refer to (e.g. a {@code -classpath}) are not part of the key.
+   */
+  public static CompilationCache persistent(File directory, long maxBytes) {
+    checkNotNull(directory);
+    checkArgument(maxBytes >= 0, "maxBytes must not be negative: %s", maxBytes);
+    return new CompilationCache(
+        maxBytes, Optional.of(new PersistentCompilationStore(directory, maxBytes)));
+  }
+
+  /** Discards every result held in memory by this cache. Stored results are kept. */
+  public void invalidateAll() {
+    results.invalidateAll();
+  }
+
+  /** Returns the number of results currently held in memory by this cache. */
+  public long size() {
+    return results.size();
+  }
+
+  /**
+   * Returns the result of compiling {@code sources} with {@code processors} and {@code options},
+   * compiling them only if no equivalent compilation is cached.
+   *
+   * @throws RuntimeException if compilation fails.
+   */
+  Compilation.Result compile(Iterable<? extends Processor> processors,
+      Iterable<String> options, Iterable<? extends JavaFileObject> sources) {
+    return compile(processors, options, sources, ImmutableList.<InMemoryClasspath>of(),
+        OutputStorage.HEAP, Compilation.Stage.GENERATE, DiagnosticRetention.ALL);
+  }
+
+  /**
+   * Returns the result of compiling {@code sources} with {@code processors} and {@code options}
+   * against {@code classpaths} up to and including {@code lastStage}, keeping the contents of
+   * generated files as {@code outputStorage} says and the diagnostics {@code diagnosticRetention}
+   * asks for, and compiling them only if no equivalent compilation is cached.
+   *
+   * @throws RuntimeException if compilation fails.
+   */
+  Compilation.Result compile(final Iterable<? extends Processor> processors,
+      final Iterable<String> options, final Iterable<? extends JavaFileObject> sources,
+      final Iterable<InMemoryClasspath> classpaths, final OutputStorage outputStorage,
+      final Compilation.Stage lastStage, final DiagnosticRetention diagnosticRetention) {
+    // the class files of the class paths are hashed like sources, which they can't be mistaken for
+    List<Iterable<? extends JavaFileObject>> inputs =
+        new ArrayList<Iterable<? extends JavaFileObject>>();
+    inputs.add(sources);
+    for (InMemoryClasspath classpath : classpaths) {
+      inputs.add(classpath.classFiles());
+    }
+    Hasher settings = KEY_FUNCTION.newHasher();
+    putString(settings, outputStorage.name());
+    putString(settings, lastStage.name());
+    settings.putInt(diagnosticRetention.maxDiagnosticsPerKind());
+    settings.putInt(diagnosticRetention.alwaysRetained().size());
+    for (Pattern pattern : diagnosticRetention.alwaysRetained()) {
+      putString(settings, pattern.pattern());
+      settings.putInt(pattern.flags());
+    }
+    final HashCode key = Hashing.combineOrdered(ImmutableList.of(
+        key(processors, options, Iterables.concat(inputs)), settings.hash()));
+    // results held in memory are also keyed by the identity of the processor classes; stored
+    // results are keyed by the contents of the class path entries they were loaded from instead
+    Hasher processorClasses = KEY_FUNCTION.newHasher();
+    for (Processor processor : processors) {
+      processorClasses.putLong(classNumbers.getUnchecked(processor.getClass()));
+    }
+    HashCode memoryKey = Hashing.combineOrdered(ImmutableList.of(key, processorClasses.hash()));
+    try {
+      return results.get(memoryKey, new Callable<Compilation.Result>() {
+        @Override public Compilation.Result call() {
+          if (!store.isPresent()) {
+            return compileUncached();
+          }
+          HashCode storeKey = store.get().key(key, processors);
+          Optional<Compilation.Result> stored = store.get().read(storeKey, sources, outputStorage);
+          if (stored.isPresent()) {
+            return stored.get();
+          }
+          Compilation.Result result = compileUncached();
+          store.get().write(storeKey, result);
+          return result;
+        }
+
+        private Compilation.Result compileUncached() {
+          return Compilation.compile(processors, options, sources, classpaths,
+              Optional.<GeneratedFileConsumer>absent(), outputStorage, lastStage,
+              diagnosticRetention.detached());
+        }
+      });
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Returns a hash identifying a compilation of {@code sources} with {@code processors} and
+   * {@code options}. Every variable-length component is prefixed with its length so that
+   * different inputs can't run together into the same byte sequence.
+   */
+  static HashCode key(Iterable<? extends Processor> processors, Iterable<String> options,
+      Iterable<? extends JavaFileObject> sources) {
+    Hasher hasher = KEY_FUNCTION.newHasher();
+    ImmutableList<String> optionList = ImmutableList.copyOf(options);
+    hasher.putInt(optionList.size());
+    for (String option : optionList) {
+      putString(hasher, option);
+    }
+    ImmutableList<Processor> processorList = ImmutableList.copyOf(processors);
+    hasher.putInt(processorList.size());
+    for (Processor processor : processorList) {
+      putString(hasher, processor.getClass().getName());
+    }
+    ImmutableList<JavaFileObject> sourceList = ImmutableList.copyOf(sources);
+    hasher.putInt(sourceList.size());
+    for (JavaFileObject source : sourceList) {
+      putString(hasher, source.toUri().toString());
+      putString(hasher, source.getKind().name());
+      try {
+        hasher.putBytes(JavaFileObjects.asByteSource(source).hash(KEY_FUNCTION).asBytes());
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return hasher.hash();
+  }
+
+  private static void putString(Hasher hasher, String string) {
+    hasher.putInt(string.length()).putString(string, UTF_8);
+  }
+
+  private static long generatedBytes(Compilation.Result result) {
+    long total = 0;
+    for (JavaFileObject generatedFile : result.generatedFilesByKind().values()) {
+      try {
+        total += JavaFileObjects.asByteSource(generatedFile).size();
+      } catch (IOException e) {
+        // in-memory files can always be read; anything else is weighed as empty
+      }
+    }
+    return total;
+  }
+}
@@ -141,6 +141,13 @@ public interface CompileTester {
 
   public interface CompilationResultsConsumer extends Consumer<Map<String, JavaFileObject>> {}
 
+  /**
+   * Receives each file generated by a compilation as soon as it has been written.
+   *
+   * @see ProcessedCompileTesterFactory#withGeneratedFileConsumer
+   */
+  public interface GeneratedFileConsumer extends Consumer<JavaFileObject> {}
+
   /**
    * The clause in the fluent API that allows to operate on the generated source or class files
    * by supplying a consumer function. The consumer function will be invoked with the generated
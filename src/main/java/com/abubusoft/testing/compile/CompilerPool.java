@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import com.google.common.collect.MapMaker;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * A JVM-wide pool of warmed-up {@link StandardJavaFileManager}s.
+ *
+ * <p>Most of the cost of a small compilation is spent by the standard file manager opening and
+ * indexing the platform class path. A file manager can be used by any number of compilations as
+ * long as they run one after the other, so instead of creating a new one for every compilation,
+ * {@link Compilation} leases an idle file manager from this pool and returns it when done. The
+ * file manager is {@linkplain StandardJavaFileManager#flush() flushed} before it is handed out
+ * again.
+ *
+ * <p>Compiler options that configure the file manager itself (e.g. {@code -classpath}) would leak
+ * into later compilations, so the file manager used by a compilation that passes any of them is
+ * closed instead of being returned to the pool.
+ *
+ * <p>Diagnostics that a file manager reports itself (e.g. about a bad class path element) go to
+ * the listener of the compilation currently leasing it.
+ *
+ * <p>This class is thread-safe.
+ */
+final class CompilerPool {
+  /** The number of idle file managers kept around; one per concurrent compilation is enough. */
+  private static final int MAX_IDLE_FILE_MANAGERS = Runtime.getRuntime().availableProcessors();
+
+  private static final BlockingQueue<StandardJavaFileManager> idleFileManagers =
+      new LinkedBlockingQueue<StandardJavaFileManager>(MAX_IDLE_FILE_MANAGERS);
+
+  /** The listener each file manager created by this pool reports its diagnostics to. */
+  private static final ConcurrentMap<StandardJavaFileManager, ForwardingDiagnosticListener>
+      listeners = new MapMaker().weakKeys().makeMap();
+
+  private static volatile JavaCompiler systemCompiler;
+
+  private CompilerPool() {}
+
+  /**
+   * Returns the system Java compiler.
+   *
+   * @throws IllegalStateException if no compiler is available in this JVM.
+   */
+  static JavaCompiler systemCompiler() {
+    JavaCompiler compiler = systemCompiler;
+    if (compiler == null) {
+      compiler = ToolProvider.getSystemJavaCompiler();
+      if (compiler == null) {
+        throw new IllegalStateException("Java Compiler is not present. "
+            + "May be, you need to include tools.jar on your dependency list.");
+      }
+      systemCompiler = compiler;
+    }
+    return compiler;
+  }
+
+  /**
+   * Returns an idle file manager, or a new one if the pool is empty, that reports its own
+   * diagnostics to {@code diagnosticListener} until it is handed back to {@link #release} once
+   * the compilation is over.
+   */
+  static StandardJavaFileManager lease(
+      DiagnosticListener<? super JavaFileObject> diagnosticListener) {
+    StandardJavaFileManager fileManager = idleFileManagers.poll();
+    if (fileManager == null) {
+      fileManager = newFileManager();
+    }
+    listeners.get(fileManager).delegate = diagnosticListener;
+    return fileManager;
+  }
+
+  /**
+   * Returns a file manager obtained from {@link #lease} to the pool, unless it was used by a
+   * compilation whose {@code options} reconfigured it, in which case it is closed.
+   */
+  static void release(StandardJavaFileManager fileManager, Iterable<String> options) {
+    ForwardingDiagnosticListener listener = listeners.get(fileManager);
+    if (listener != null) {
+      listener.delegate = null;
+    }
+    if (!isReusableWith(fileManager, options)) {
+      closeQuietly(fileManager);
+      return;
+    }
+    try {
+      fileManager.flush();
+    } catch (IOException e) {
+      // a file manager that can't be flushed isn't worth keeping around
+      closeQuietly(fileManager);
+      return;
+    }
+    if (!idleFileManagers.offer(fileManager)) {
+      closeQuietly(fileManager);
+    }
+  }
+
+  /** Returns the number of file managers currently waiting in the pool. Used for testing. */
+  static int idleCount() {
+    return idleFileManagers.size();
+  }
+
+  private static StandardJavaFileManager newFileManager() {
+    ForwardingDiagnosticListener listener = new ForwardingDiagnosticListener();
+    StandardJavaFileManager fileManager =
+        systemCompiler().getStandardFileManager(listener, Locale.getDefault(), UTF_8);
+    listeners.put(fileManager, listener);
+    return fileManager;
+  }
+
+  /** Returns {@code false} if any of the {@code options} would reconfigure the file manager. */
+  private static boolean isReusableWith(
+      StandardJavaFileManager fileManager, Iterable<String> options) {
+    for (String option : options) {
+      if (fileManager.isSupportedOption(option) >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void closeQuietly(StandardJavaFileManager fileManager) {
+    listeners.remove(fileManager);
+    try {
+      fileManager.close();
+    } catch (IOException e) {
+      // nothing useful to do; the file manager is being discarded anyway
+    }
+  }
+
+  /**
+   * Forwards the diagnostics of a pooled file manager to the listener of the compilation that
+   * currently leases it, and drops those reported while it sits idle in the pool.
+   */
+  private static final class ForwardingDiagnosticListener
+      implements DiagnosticListener<JavaFileObject> {
+    volatile DiagnosticListener<? super JavaFileObject> delegate;
+
+    @Override
+    public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+      DiagnosticListener<? super JavaFileObject> current = delegate;
+      if (current != null) {
+        current.report(diagnostic);
+      }
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Locale;
+
+import javax.annotation.Nullable;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * A {@link Diagnostic} whose every property was captured up front, so that unlike the diagnostics
+ * reported by {@code javac} it holds no reference to the compiler that produced it. The message
+ * is the one {@code javac} formatted for the default locale.
+ */
+final class DetachedDiagnostic implements Diagnostic<JavaFileObject> {
+  private final Kind kind;
+  @Nullable private final JavaFileObject source;
+  private final long position;
+  private final long startPosition;
+  private final long endPosition;
+  private final long lineNumber;
+  private final long columnNumber;
+  @Nullable private final String code;
+  private final String message;
+  private final String formatted;
+
+  DetachedDiagnostic(Kind kind, @Nullable JavaFileObject source, long position,
+      long startPosition, long endPosition, long lineNumber, long columnNumber,
+      @Nullable String code, String message, String formatted) {
+    this.kind = checkNotNull(kind);
+    this.source = source;
+    this.position = position;
+    this.startPosition = startPosition;
+    this.endPosition = endPosition;
+    this.lineNumber = lineNumber;
+    this.columnNumber = columnNumber;
+    this.code = code;
+    this.message = checkNotNull(message);
+    this.formatted = checkNotNull(formatted);
+  }
+
+  /** Returns a copy of {@code diagnostic} that reports the same properties. */
+  static DetachedDiagnostic copyOf(Diagnostic<? extends JavaFileObject> diagnostic) {
+    return new DetachedDiagnostic(diagnostic.getKind(), diagnostic.getSource(),
+        diagnostic.getPosition(), diagnostic.getStartPosition(), diagnostic.getEndPosition(),
+        diagnostic.getLineNumber(), diagnostic.getColumnNumber(), diagnostic.getCode(),
+        diagnostic.getMessage(null), diagnostic.toString());
+  }
+
+  @Override
+  public Kind getKind() {
+    return kind;
+  }
+
+  @Override
+  @Nullable
+  public JavaFileObject getSource() {
+    return source;
+  }
+
+  @Override
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public long getStartPosition() {
+    return startPosition;
+  }
+
+  @Override
+  public long getEndPosition() {
+    return endPosition;
+  }
+
+  @Override
+  public long getLineNumber() {
+    return lineNumber;
+  }
+
+  @Override
+  public long getColumnNumber() {
+    return columnNumber;
+  }
+
+  @Override
+  @Nullable
+  public String getCode() {
+    return code;
+  }
+
+  @Override
+  public String getMessage(@Nullable Locale locale) {
+    return message;
+  }
+
+  @Override
+  public String toString() {
+    return formatted;
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableTable;
+import com.google.common.collect.Table;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.tools.Diagnostic;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+
+/**
+ * The diagnostics of a compilation, with their messages formatted once and indexed by kind, the
+ * path of their source file and line, so that assertions about them neither format every message
+ * again nor scan every diagnostic to find those on a line.
+ */
+final class DiagnosticIndex {
+  private final ImmutableListMultimap<Kind, Diagnostic<? extends JavaFileObject>>
+      diagnosticsByKind;
+  private final Map<Diagnostic<?>, String> messages;
+  private final ImmutableTable<Kind, String,
+      ImmutableListMultimap<Long, Diagnostic<? extends JavaFileObject>>> diagnosticsByLine;
+
+  DiagnosticIndex(
+      ImmutableListMultimap<Kind, Diagnostic<? extends JavaFileObject>> diagnosticsByKind) {
+    this.diagnosticsByKind = diagnosticsByKind;
+    Map<Diagnostic<?>, String> messages = new IdentityHashMap<Diagnostic<?>, String>();
+    Table<Kind, String, ImmutableListMultimap.Builder<Long, Diagnostic<? extends JavaFileObject>>>
+        builders = HashBasedTable.create();
+    for (Map.Entry<Kind, Diagnostic<? extends JavaFileObject>> entry
+        : diagnosticsByKind.entries()) {
+      Diagnostic<? extends JavaFileObject> diagnostic = entry.getValue();
+      messages.put(diagnostic, diagnostic.getMessage(null));
+      if (diagnostic.getSource() != null) {
+        String path = diagnostic.getSource().toUri().getPath();
+        ImmutableListMultimap.Builder<Long, Diagnostic<? extends JavaFileObject>> builder =
+            builders.get(entry.getKey(), path);
+        if (builder == null) {
+          builder = ImmutableListMultimap.builder();
+          builders.put(entry.getKey(), path, builder);
+        }
+        builder.put(diagnostic.getLineNumber(), diagnostic);
+      }
+    }
+    ImmutableTable.Builder<Kind, String,
+        ImmutableListMultimap<Long, Diagnostic<? extends JavaFileObject>>> byLine =
+            ImmutableTable.builder();
+    for (Table.Cell<Kind, String,
+        ImmutableListMultimap.Builder<Long, Diagnostic<? extends JavaFileObject>>> cell
+        : builders.cellSet()) {
+      byLine.put(cell.getRowKey(), cell.getColumnKey(), cell.getValue().build());
+    }
+    this.messages = Collections.unmodifiableMap(messages);
+    this.diagnosticsByLine = byLine.build();
+  }
+
+  /**
+   * Returns the message of {@code diagnostic}, formatting it again only if it isn't one of the
+   * indexed diagnostics.
+   */
+  String message(Diagnostic<?> diagnostic) {
+    String message = messages.get(diagnostic);
+    return (message == null) ? diagnostic.getMessage(null) : message;
+  }
+
+  /** Returns the messages of the diagnostics of {@code kind}, in the order they were reported. */
+  ImmutableList<String> messages(Kind kind) {
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    for (Diagnostic<?> diagnostic : diagnosticsByKind.get(kind)) {
+      result.add(message(diagnostic));
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns the diagnostics of {@code kind} whose message contains {@code messageFragment}, in
+   * the order they were reported.
+   */
+  ImmutableList<Diagnostic<? extends JavaFileObject>> withMessageContaining(
+      Kind kind, String messageFragment) {
+    ImmutableList.Builder<Diagnostic<? extends JavaFileObject>> result = ImmutableList.builder();
+    for (Diagnostic<? extends JavaFileObject> diagnostic : diagnosticsByKind.get(kind)) {
+      if (message(diagnostic).contains(messageFragment)) {
+        result.add(diagnostic);
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns the diagnostics of {@code kind} in the source file with {@code path}, by line, in the
+   * order they were reported.
+   */
+  ImmutableListMultimap<Long, Diagnostic<? extends JavaFileObject>> inFile(
+      Kind kind, String path) {
+    ImmutableListMultimap<Long, Diagnostic<? extends JavaFileObject>> diagnostics =
+        diagnosticsByLine.get(kind, path);
+    return (diagnostics == null)
+        ? ImmutableListMultimap.<Long, Diagnostic<? extends JavaFileObject>>of()
+        : diagnostics;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.EnumMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.Multiset;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+
+/**
+ * Which of the diagnostics reported by a compilation are kept in its {@link Compilation.Result}:
+ * the first few of each kind, and any others whose message matches one of a set of patterns.
+ * Every diagnostic is counted whether or not it is kept.
+ *
+ * <p>Diagnostics may be kept as {@linkplain DetachedDiagnostic detached} copies, which unlike the
+ * diagnostics {@code javac} reports don't keep its symbol tables and syntax trees reachable once
+ * the compilation is over.
+ */
+final class DiagnosticRetention {
+  /** Keeps every diagnostic. */
+  static final DiagnosticRetention ALL =
+      new DiagnosticRetention(Integer.MAX_VALUE, ImmutableList.<Pattern>of());
+
+  private final int maxDiagnosticsPerKind;
+  private final ImmutableList<Pattern> alwaysRetained;
+  private final boolean detached;
+
+  DiagnosticRetention(int maxDiagnosticsPerKind, Iterable<Pattern> alwaysRetained) {
+    this(maxDiagnosticsPerKind, alwaysRetained, false);
+  }
+
+  private DiagnosticRetention(
+      int maxDiagnosticsPerKind, Iterable<Pattern> alwaysRetained, boolean detached) {
+    checkArgument(maxDiagnosticsPerKind > 0,
+        "maxDiagnosticsPerKind must be positive: %s", maxDiagnosticsPerKind);
+    this.maxDiagnosticsPerKind = maxDiagnosticsPerKind;
+    this.alwaysRetained = ImmutableList.copyOf(alwaysRetained);
+    this.detached = detached;
+  }
+
+  /** Returns a retention that keeps the same diagnostics, as detached copies. */
+  DiagnosticRetention detached() {
+    return detached ? this : new DiagnosticRetention(maxDiagnosticsPerKind, alwaysRetained, true);
+  }
+
+  /** Returns the number of diagnostics of each kind that are kept regardless of their message. */
+  int maxDiagnosticsPerKind() {
+    return maxDiagnosticsPerKind;
+  }
+
+  /** Returns the patterns of messages that are kept beyond {@link #maxDiagnosticsPerKind}. */
+  ImmutableList<Pattern> alwaysRetained() {
+    return alwaysRetained;
+  }
+
+  /** Returns a new listener that collects diagnostics for a single compilation. */
+  Collector newCollector() {
+    return new Collector();
+  }
+
+  /**
+   * A {@link DiagnosticListener} that counts every diagnostic and keeps those the enclosing
+   * {@code DiagnosticRetention} asks for. Diagnostics that aren't kept can be collected as soon
+   * as they have been reported.
+   */
+  final class Collector implements DiagnosticListener<JavaFileObject> {
+    private final Multiset<Diagnostic.Kind> counts = EnumMultiset.create(Diagnostic.Kind.class);
+    private final List<Diagnostic<? extends JavaFileObject>> retained =
+        new ArrayList<Diagnostic<? extends JavaFileObject>>();
+
+    private Collector() {}
+
+    @Override
+    public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+      int count = counts.add(diagnostic.getKind(), 1);
+      if (count < maxDiagnosticsPerKind || isAlwaysRetained(diagnostic)) {
+        retained.add(detached ? DetachedDiagnostic.copyOf(diagnostic) : diagnostic);
+      }
+    }
+
+    private boolean isAlwaysRetained(Diagnostic<?> diagnostic) {
+      if (alwaysRetained.isEmpty()) {
+        return false;
+      }
+      String message = diagnostic.getMessage(null);
+      for (Pattern pattern : alwaysRetained) {
+        if (pattern.matcher(message).find()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Returns the diagnostics that were kept, by kind. */
+    ImmutableListMultimap<Diagnostic.Kind, Diagnostic<? extends JavaFileObject>>
+        getDiagnosticsByKind() {
+      return Compilation.sortDiagnosticsByKind(retained);
+    }
+
+    /** Returns the number of diagnostics of each kind that were reported, kept or not. */
+    ImmutableMultiset<Diagnostic.Kind> getCounts() {
+      return ImmutableMultiset.copyOf(counts);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import java.util.Map;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * The class files of a set of dependency sources, compiled once so that later compilations can
+ * use them as a {@linkplain StandardLocation#CLASS_PATH class path} rather than compile the same
+ * sources again: <pre>   {@code
+ *
+ *   private static final InMemoryClasspath DEPENDENCIES =
+ *       InMemoryClasspath.compile(annotationSource, baseClassSource);
+ *
+ *   assertAbout(javaSource()).that(source)
+ *       .withClasspath(DEPENDENCIES)
+ *       .processedWith(new MyAnnotationProcessor())
+ *       .compilesWithoutError();
+ * }</pre>
+ *
+ * <p>The class files are searched before the class path of the compiler, and are never written
+ * to. Instances are immutable and may be shared by compilations on several threads.
+ */
+public final class InMemoryClasspath {
+  private final ImmutableMap<String, JavaFileObject> classFilesByBinaryName;
+  private final ImmutableListMultimap<String, JavaFileObject> classFilesByPackage;
+
+  private InMemoryClasspath(Iterable<JavaFileObject> classFiles) {
+    ImmutableMap.Builder<String, JavaFileObject> byBinaryName = ImmutableMap.builder();
+    ImmutableListMultimap.Builder<String, JavaFileObject> byPackage =
+        ImmutableListMultimap.builder();
+    for (JavaFileObject classFile : classFiles) {
+      String binaryName = InMemoryJavaFileManager.binaryNameOf(classFile);
+      int lastDot = binaryName.lastIndexOf('.');
+      byBinaryName.put(binaryName, classFile);
+      byPackage.put((lastDot < 0) ? "" : binaryName.substring(0, lastDot), classFile);
+    }
+    this.classFilesByBinaryName = byBinaryName.build();
+    this.classFilesByPackage = byPackage.build();
+  }
+
+  /**
+   * Compiles {@code sources} without any annotation processing.
+   *
+   * @throws IllegalStateException if the sources don't compile
+   */
+  public static InMemoryClasspath compile(JavaFileObject first, JavaFileObject... rest) {
+    return compile(Lists.asList(first, rest));
+  }
+
+  /**
+   * Compiles {@code sources} without any annotation processing.
+   *
+   * @throws IllegalStateException if the sources don't compile
+   */
+  public static InMemoryClasspath compile(Iterable<? extends JavaFileObject> sources) {
+    Compilation.Result result = Compilation.compile(ImmutableSet.<Processor>of(),
+        ImmutableList.of("-proc:none"), sources);
+    if (!result.successful()) {
+      throw new IllegalStateException("error while compiling the class path:\n"
+          + Diagnostics.toString(result.diagnosticsByKind().get(Diagnostic.Kind.ERROR)));
+    }
+    return new InMemoryClasspath(result.generatedFilesByKind().get(JavaFileObject.Kind.CLASS));
+  }
+
+  /** Returns every class file, in the order they were written. */
+  ImmutableList<JavaFileObject> classFiles() {
+    return classFilesByBinaryName.values().asList();
+  }
+
+  /** Returns the class file of the class with {@code binaryName}, if there is one. */
+  Optional<JavaFileObject> classFile(String binaryName) {
+    return Optional.fromNullable(classFilesByBinaryName.get(binaryName));
+  }
+
+  /**
+   * Returns the class files in {@code packageName}, and in its subpackages if {@code recurse} is
+   * set.
+   */
+  ImmutableList<JavaFileObject> classFiles(String packageName, boolean recurse) {
+    if (!recurse) {
+      return classFilesByPackage.get(packageName);
+    }
+    ImmutableList.Builder<JavaFileObject> result = ImmutableList.builder();
+    String prefix = packageName + '.';
+    for (Map.Entry<String, JavaFileObject> entry : classFilesByPackage.entries()) {
+      if (packageName.isEmpty() || entry.getKey().equals(packageName)
+          || entry.getKey().startsWith(prefix)) {
+        result.add(entry.getValue());
+      }
+    }
+    return result.build();
+  }
+}
@@ -15,26 +15,38 @@
  */
 package com.abubusoft.testing.compile;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.abubusoft.testing.compile.CompileTester.GeneratedFileConsumer;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Optional;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.io.ByteSource;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.tools.FileObject;
 import javax.tools.ForwardingJavaFileManager;
@@ -47,32 +59,79 @@ import javax.tools.StandardLocation;
 /**
  * A file manager implementation that stores all output in memory.
  *
+ * <p>Output files may be created, written, listed and read from any thread. Once
+ * {@link #getFileForOutput} or {@link #getJavaFileForOutput} has returned a file on any thread,
+ * {@link #getOutputFiles} includes it, and {@link #list} does as soon as it has been written.
+ * Each write replaces the contents of a file as a whole, so readers never see part of one.
+ *
  * @author Gregory Kick
  */
 // TODO(gak): under java 1.7 this could all be done with a PathFileManager
 final class InMemoryJavaFileManager extends ForwardingJavaFileManager<JavaFileManager> {
-  private final LoadingCache<URI, JavaFileObject> inMemoryFileObjects =
-      CacheBuilder.newBuilder().build(new CacheLoader<URI, JavaFileObject>() {
-        @Override
-        public JavaFileObject load(URI key) {
-          return new InMemoryJavaFileObject(key);
-        }
-      });
+  /** Where the contents of output files are kept once they have been written. */
+  enum OutputStorage {
+    /** In a byte array on the heap. */
+    HEAP,
+    /**
+     * In a {@linkplain ByteBuffer#allocateDirect direct buffer} outside of the heap, so that large
+     * outputs don't add to garbage collection pauses. Outputs are read from the buffer without
+     * copying it. Direct buffers count against {@code -XX:MaxDirectMemorySize}.
+     */
+    DIRECT;
 
-  InMemoryJavaFileManager(JavaFileManager fileManager) {
-    super(fileManager);
+    /** Returns the first {@code length} of {@code bytes}, kept the way this storage keeps them. */
+    ByteSource keep(byte[] bytes, int length) {
+      switch (this) {
+        case DIRECT:
+          ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+          buffer.put(bytes, 0, length);
+          buffer.flip();
+          return new ByteBufferSource(buffer.asReadOnlyBuffer());
+        default:
+          // trimmed so that no spare capacity of the buffer written to is kept alive
+          return ByteSource.wrap((length == bytes.length) ? bytes : Arrays.copyOf(bytes, length));
+      }
+    }
   }
 
-  private static URI uriForFileObject(Location location, String packageName, String relativeName) {
-    return URI.create(
-        "mem:///" + location.getName() + '/' + CharMatcher.is('.').replaceFrom(packageName, '/')
-            + '/' + relativeName);
+  private final Optional<GeneratedFileConsumer> generatedFileConsumer;
+  private final OutputStorage outputStorage;
+  private final ImmutableList<InMemoryClasspath> classpaths;
+  /**
+   * Every output file, by key. A file is only put here once every other index has it, so any
+   * file that can be looked up can also be listed.
+   */
+  private final ConcurrentMap<FileKey, InMemoryJavaFileObject> inMemoryFileObjects =
+      new ConcurrentHashMap<FileKey, InMemoryJavaFileObject>();
+  /** Guards the creation of output files, which are looked up without it. */
+  private final Object creationLock = new Object();
+  /** The output files of each location and package, in the order they were created. */
+  private final ConcurrentMap<PackageKey, Queue<InMemoryJavaFileObject>> filesByPackage =
+      new ConcurrentHashMap<PackageKey, Queue<InMemoryJavaFileObject>>();
+  /** The names of the packages directly within each package that has output files. */
+  private final ConcurrentMap<PackageKey, Set<String>> subpackages =
+      new ConcurrentHashMap<PackageKey, Set<String>>();
+  /** Every output file, in the order they were created. */
+  private final Queue<InMemoryJavaFileObject> outputFiles =
+      new ConcurrentLinkedQueue<InMemoryJavaFileObject>();
+
+  InMemoryJavaFileManager(JavaFileManager fileManager) {
+    this(fileManager, ImmutableList.<InMemoryClasspath>of(),
+        Optional.<GeneratedFileConsumer>absent(), OutputStorage.HEAP);
   }
 
-  private static URI uriForJavaFileObject(Location location, String className, Kind kind) {
-    return URI.create(
-        "mem:///" + location.getName() + '/' + CharMatcher.is('.').replaceFrom(className, '/')
-            + kind.extension);
+  /**
+   * Creates a file manager that serves the class files of {@code classpaths} ahead of the rest of
+   * the class path, keeps the contents of output files as {@code outputStorage} says, and hands
+   * each output file to {@code generatedFileConsumer} whenever writing to it finishes. The file
+   * manager that is forwarded to must be thread-safe too if it is used by several threads.
+   */
+  InMemoryJavaFileManager(JavaFileManager fileManager, Iterable<InMemoryClasspath> classpaths,
+      Optional<GeneratedFileConsumer> generatedFileConsumer, OutputStorage outputStorage) {
+    super(fileManager);
+    this.classpaths = ImmutableList.copyOf(classpaths);
+    this.generatedFileConsumer = generatedFileConsumer;
+    this.outputStorage = outputStorage;
   }
 
   @Override
@@ -88,8 +147,7 @@ final class InMemoryJavaFileManager extends ForwardingJavaFileManager<JavaFileMa
   public FileObject getFileForInput(Location location, String packageName,
       String relativeName) throws IOException {
     if (location.isOutputLocation()) {
-      return inMemoryFileObjects.getIfPresent(
-          uriForFileObject(location, packageName, relativeName));
+      return inMemoryFileObjects.get(FileKey.forFile(location, packageName, relativeName));
     } else {
       return super.getFileForInput(location, packageName, relativeName);
     }
@@ -99,7 +157,15 @@ final class InMemoryJavaFileManager extends ForwardingJavaFileManager<JavaFileMa
   public JavaFileObject getJavaFileForInput(Location location, String className, Kind kind)
       throws IOException {
     if (location.isOutputLocation()) {
-      return inMemoryFileObjects.getIfPresent(uriForJavaFileObject(location, className, kind));
+      return inMemoryFileObjects.get(FileKey.forJavaFile(location, className, kind));
+    } else if (isInMemoryClasspath(location) && kind == Kind.CLASS) {
+      for (InMemoryClasspath classpath : classpaths) {
+        Optional<JavaFileObject> classFile = classpath.classFile(className);
+        if (classFile.isPresent()) {
+          return classFile.get();
+        }
+      }
+      return super.getJavaFileForInput(location, className, kind);
     } else {
       return super.getJavaFileForInput(location, className, kind);
     }
@@ -108,45 +174,237 @@ final class InMemoryJavaFileManager extends ForwardingJavaFileManager<JavaFileMa
   @Override
   public FileObject getFileForOutput(Location location, String packageName,
       String relativeName, FileObject sibling) throws IOException {
-    URI uri = uriForFileObject(location, packageName, relativeName);
-    return inMemoryFileObjects.getUnchecked(uri);
+    FileKey key = FileKey.forFile(location, packageName, relativeName);
+    InMemoryJavaFileObject existing = inMemoryFileObjects.get(key);
+    return (existing != null) ? existing : outputFile(key);
   }
 
   @Override
   public JavaFileObject getJavaFileForOutput(Location location, String className, final Kind kind,
       FileObject sibling) throws IOException {
-    URI uri = uriForJavaFileObject(location, className, kind);
-    return inMemoryFileObjects.getUnchecked(uri);
+    FileKey key = FileKey.forJavaFile(location, className, kind);
+    InMemoryJavaFileObject existing = inMemoryFileObjects.get(key);
+    return (existing != null) ? existing : outputFile(key);
+  }
+
+  /**
+   * Returns the output file for {@code key}, creating and indexing it unless another thread just
+   * did. The file is published by key only once it is in every other index.
+   */
+  private InMemoryJavaFileObject outputFile(FileKey key) {
+    synchronized (creationLock) {
+      InMemoryJavaFileObject existing = inMemoryFileObjects.get(key);
+      if (existing != null) {
+        return existing;
+      }
+      InMemoryJavaFileObject created =
+          new InMemoryJavaFileObject(key.toUri(), generatedFileConsumer, outputStorage);
+      PackageKey packageKey = key.packageKey;
+      Queue<InMemoryJavaFileObject> packageFiles = filesByPackage.get(packageKey);
+      if (packageFiles == null) {
+        packageFiles = new ConcurrentLinkedQueue<InMemoryJavaFileObject>();
+        filesByPackage.put(packageKey, packageFiles);
+        addToParentPackages(packageKey);
+      }
+      packageFiles.add(created);
+      outputFiles.add(created);
+      inMemoryFileObjects.put(key, created);
+      return created;
+    }
+  }
+
+  /**
+   * Records {@code packageKey} as a subpackage of each of its parents. Called with the
+   * {@link #creationLock} held.
+   */
+  private void addToParentPackages(PackageKey packageKey) {
+    while (!packageKey.packageName.isEmpty()) {
+      int lastDot = packageKey.packageName.lastIndexOf('.');
+      PackageKey parent = new PackageKey(packageKey.location,
+          (lastDot < 0) ? "" : packageKey.packageName.substring(0, lastDot));
+      Set<String> children = subpackages.get(parent);
+      if (children == null) {
+        children = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        subpackages.put(parent, children);
+      }
+      if (!children.add(packageKey.packageName)) {
+        return; // its parents were recorded already
+      }
+      packageKey = parent;
+    }
+  }
+
+  /**
+   * Lists the output files that have been written in {@code packageName} of an output location,
+   * and in its subpackages if {@code recurse} is set, without looking at any other files. Other
+   * locations are listed by the file manager that is forwarded to.
+   */
+  @Override
+  public Iterable<JavaFileObject> list(Location location, String packageName, Set<Kind> kinds,
+      boolean recurse) throws IOException {
+    if (isInMemoryClasspath(location) && kinds.contains(Kind.CLASS)) {
+      List<Iterable<JavaFileObject>> classFiles = new ArrayList<Iterable<JavaFileObject>>();
+      for (InMemoryClasspath classpath : classpaths) {
+        classFiles.add(classpath.classFiles(packageName, recurse));
+      }
+      classFiles.add(super.list(location, packageName, kinds, recurse));
+      return Iterables.concat(classFiles);
+    }
+    if (!location.isOutputLocation()) {
+      return super.list(location, packageName, kinds, recurse);
+    }
+    ImmutableList.Builder<JavaFileObject> result = ImmutableList.builder();
+    addWrittenFiles(new PackageKey(location.getName(), packageName), kinds, recurse, result);
+    return result.build();
+  }
+
+  private void addWrittenFiles(PackageKey packageKey, Set<Kind> kinds, boolean recurse,
+      ImmutableList.Builder<JavaFileObject> result) {
+    Queue<InMemoryJavaFileObject> packageFiles = filesByPackage.get(packageKey);
+    if (packageFiles != null) {
+      for (InMemoryJavaFileObject fileObject : packageFiles) {
+        if (kinds.contains(fileObject.getKind()) && fileObject.exists()) {
+          result.add(fileObject);
+        }
+      }
+    }
+    Set<String> children = recurse ? subpackages.get(packageKey) : null;
+    if (children != null) {
+      for (String child : children) {
+        addWrittenFiles(new PackageKey(packageKey.location, child), kinds, true, result);
+      }
+    }
+  }
+
+  private boolean isInMemoryClasspath(Location location) {
+    return location == StandardLocation.CLASS_PATH && !classpaths.isEmpty();
+  }
+
+  @Override
+  public boolean hasLocation(Location location) {
+    return isInMemoryClasspath(location) || super.hasLocation(location);
+  }
+
+  /**
+   * Returns the binary name of the class that an output file of an {@code InMemoryJavaFileManager}
+   * is for.
+   *
+   * @throws IllegalArgumentException if {@code file} is not such an output file
+   */
+  static String binaryNameOf(JavaFileObject file) {
+    checkArgument(file instanceof InMemoryJavaFileObject, "not an in-memory file: %s", file);
+    return ((InMemoryJavaFileObject) file).binaryName();
+  }
+
+  @Override
+  public String inferBinaryName(Location location, JavaFileObject file) {
+    if (file instanceof InMemoryJavaFileObject) {
+      return ((InMemoryJavaFileObject) file).binaryName();
+    }
+    return super.inferBinaryName(location, file);
   }
 
   ImmutableList<JavaFileObject> getGeneratedSources() {
     ImmutableList.Builder<JavaFileObject> result = ImmutableList.builder();
-    for (Entry<URI, JavaFileObject> entry : inMemoryFileObjects.asMap().entrySet()) {
-      if (entry.getKey().getPath().startsWith("/" + StandardLocation.SOURCE_OUTPUT.name())
-          && (entry.getValue().getKind() == Kind.SOURCE)) {
-        result.add(entry.getValue());
+    for (JavaFileObject fileObject : outputFiles) {
+      if (fileObject.toUri().getPath().startsWith("/" + StandardLocation.SOURCE_OUTPUT.name())
+          && (fileObject.getKind() == Kind.SOURCE)) {
+        result.add(fileObject);
       }
     }
     return result.build();
   }
 
   ImmutableList<JavaFileObject> getOutputFiles() {
-    return ImmutableList.copyOf(inMemoryFileObjects.asMap().values());
+    return ImmutableList.<JavaFileObject>copyOf(outputFiles);
+  }
+
+  /**
+   * Returns an output file like those created by this file manager, holding {@code contents} if
+   * present, kept as {@code outputStorage} says. Used to restore output files from a persistent
+   * {@link CompilationCache}.
+   */
+  static JavaFileObject restoredOutputFile(URI uri, Optional<byte[]> contents,
+      long lastModified, OutputStorage outputStorage) {
+    InMemoryJavaFileObject fileObject = new InMemoryJavaFileObject(
+        uri, Optional.<GeneratedFileConsumer>absent(), outputStorage);
+    Optional<ByteSource> data = contents.isPresent()
+        ? Optional.of(outputStorage.keep(contents.get(), contents.get().length))
+        : Optional.<ByteSource>absent();
+    fileObject.contents = new Contents(data, Optional.<String>absent(), lastModified);
+    return fileObject;
   }
 
+  /**
+   * An output file. Its contents may be written and read on different threads: each write
+   * replaces the {@link Contents} of the file as a whole, so readers see either all of a write or
+   * none of it.
+   */
   private static final class InMemoryJavaFileObject extends SimpleJavaFileObject
       implements JavaFileObject {
-    private long lastModified = 0L;
-    private Optional<ByteSource> data = Optional.absent();
+    private volatile Contents contents = Contents.NONE;
+    private final Optional<GeneratedFileConsumer> generatedFileConsumer;
+    private final OutputStorage outputStorage;
 
-    InMemoryJavaFileObject(URI uri) {
+    InMemoryJavaFileObject(URI uri, Optional<GeneratedFileConsumer> generatedFileConsumer,
+        OutputStorage outputStorage) {
       super(uri, JavaFileObjects.deduceKind(uri));
+      this.generatedFileConsumer = generatedFileConsumer;
+      this.outputStorage = outputStorage;
+    }
+
+    /** Keeps the first {@code length} of {@code bytes} as the contents of this file. */
+    private void written(byte[] bytes, int length) {
+      written(new Contents(
+          Optional.of(outputStorage.keep(bytes, length)), Optional.<String>absent(), now()));
+    }
+
+    /** Keeps {@code text} as the contents of this file. */
+    private void written(String text) {
+      if (outputStorage == OutputStorage.DIRECT) {
+        byte[] bytes = text.getBytes(Charset.defaultCharset());
+        written(bytes, bytes.length);
+        return;
+      }
+      written(new Contents(Optional.<ByteSource>absent(), Optional.of(text), now()));
+    }
+
+    private void written(Contents contents) {
+      this.contents = contents;
+      if (generatedFileConsumer.isPresent()) {
+        generatedFileConsumer.get().accept(this);
+      }
+    }
+
+    private static long now() {
+      return System.currentTimeMillis();
+    }
+
+    boolean exists() {
+      return contents != Contents.NONE;
+    }
+
+    /**
+     * Returns the binary name of the class this file is for, as told by its path within its
+     * location.
+     */
+    String binaryName() {
+      String path = toUri().getPath();
+      String relativePath = path.substring(path.indexOf('/', 1) + 1);
+      int start = CharMatcher.is('/').negate().indexIn(relativePath);
+      int end = relativePath.endsWith(kind.extension)
+          ? relativePath.length() - kind.extension.length()
+          : relativePath.length();
+      return relativePath.substring(Math.max(start, 0), end).replace('/', '.');
     }
 
     @Override
     public InputStream openInputStream() throws IOException {
-      if (data.isPresent()) {
-        return data.get().openStream();
+      Contents current = contents;
+      if (current.text.isPresent()) {
+        return new ByteArrayInputStream(current.text.get().getBytes(Charset.defaultCharset()));
+      } else if (current.bytes.isPresent()) {
+        return current.bytes.get().openStream();
       } else {
         throw new FileNotFoundException();
       }
@@ -155,19 +413,27 @@ final class InMemoryJavaFileManager extends ForwardingJavaFileManager<JavaFileMa
     @Override
     public OutputStream openOutputStream() throws IOException {
       return new ByteArrayOutputStream() {
+        private boolean closed;
+
         @Override
         public void close() throws IOException {
-          super.close();
-          data = Optional.of(ByteSource.wrap(toByteArray()));
-          lastModified = System.currentTimeMillis();
+          // closing again has no effect, so the contents are only published once
+          if (!closed) {
+            closed = true;
+            super.close();
+            written(buf, count);
+          }
         }
       };
     }
 
     @Override
     public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
-      if (data.isPresent()) {
-        return data.get().asCharSource(Charset.defaultCharset()).openStream();
+      Contents current = contents;
+      if (current.text.isPresent()) {
+        return new StringReader(current.text.get());
+      } else if (current.bytes.isPresent()) {
+        return current.bytes.get().asCharSource(Charset.defaultCharset()).openStream();
       } else {
         throw new FileNotFoundException();
       }
@@ -176,8 +442,11 @@ final class InMemoryJavaFileManager extends ForwardingJavaFileManager<JavaFileMa
     @Override
     public CharSequence getCharContent(boolean ignoreEncodingErrors)
         throws IOException {
-      if (data.isPresent()) {
-        return data.get().asCharSource(Charset.defaultCharset()).read();
+      Contents current = contents;
+      if (current.text.isPresent()) {
+        return current.text.get();
+      } else if (current.bytes.isPresent()) {
+        return current.bytes.get().asCharSource(Charset.defaultCharset()).read();
       } else {
         throw new FileNotFoundException();
       }
@@ -186,25 +455,27 @@ final class InMemoryJavaFileManager extends ForwardingJavaFileManager<JavaFileMa
     @Override
     public Writer openWriter() throws IOException {
       return new StringWriter() {
+        private boolean closed;
+
         @Override
         public void close() throws IOException {
-          super.close();
-          data =
-              Optional.of(ByteSource.wrap(toString().getBytes(Charset.defaultCharset())));
-          lastModified = System.currentTimeMillis();
+          if (!closed) {
+            closed = true;
+            super.close();
+            written(toString());
+          }
         }
       };
     }
 
     @Override
     public long getLastModified() {
-      return lastModified;
+      return contents.lastModified;
     }
 
     @Override
     public boolean delete() {
-      this.data = Optional.absent();
-      this.lastModified = 0L;
+      this.contents = Contents.NONE;
       return true;
     }
 
@@ -216,4 +487,162 @@ final class InMemoryJavaFileManager extends ForwardingJavaFileManager<JavaFileMa
           .toString();
     }
   }
+
+  /**
+   * What was last written to an {@link InMemoryJavaFileObject}. Output written as characters is
+   * kept as {@code text}, and not encoded until it is read as bytes.
+   */
+  private static final class Contents {
+    static final Contents NONE =
+        new Contents(Optional.<ByteSource>absent(), Optional.<String>absent(), 0L);
+
+    final Optional<ByteSource> bytes;
+    final Optional<String> text;
+    final long lastModified;
+
+    Contents(Optional<ByteSource> bytes, Optional<String> text, long lastModified) {
+      this.bytes = bytes;
+      this.text = text;
+      this.lastModified = lastModified;
+    }
+  }
+
+  /**
+   * Identifies an output file by its location, package and file name. Files are looked up by
+   * these rather than by their {@link URI}, which is only built once, when a file is created, and
+   * from the key, so that a file has the same URI however it was first asked for.
+   */
+  private static final class FileKey {
+    final PackageKey packageKey;
+    final String fileName;
+
+    private FileKey(PackageKey packageKey, String fileName) {
+      this.packageKey = packageKey;
+      this.fileName = fileName;
+    }
+
+    static FileKey forFile(Location location, String packageName, String relativeName) {
+      int lastSlash = relativeName.lastIndexOf('/');
+      if (lastSlash < 0) {
+        return new FileKey(new PackageKey(location.getName(), packageName), relativeName);
+      }
+      // a relative name may lead into subpackages
+      String subpackageName = relativeName.substring(0, lastSlash).replace('/', '.');
+      return new FileKey(
+          new PackageKey(location.getName(), joinPackages(packageName, subpackageName)),
+          relativeName.substring(lastSlash + 1));
+    }
+
+    static FileKey forJavaFile(Location location, String className, Kind kind) {
+      int lastDot = className.lastIndexOf('.');
+      return new FileKey(
+          new PackageKey(location.getName(), (lastDot < 0) ? "" : className.substring(0, lastDot)),
+          className.substring(lastDot + 1) + kind.extension);
+    }
+
+    URI toUri() {
+      String packagePath = packageKey.packageName.isEmpty()
+          ? ""
+          : CharMatcher.is('.').replaceFrom(packageKey.packageName, '/') + '/';
+      return URI.create("mem:///" + packageKey.location + '/' + packagePath + fileName);
+    }
+
+    private static String joinPackages(String packageName, String subpackageName) {
+      return packageName.isEmpty() ? subpackageName : packageName + '.' + subpackageName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof FileKey)) {
+        return false;
+      }
+      FileKey other = (FileKey) o;
+      return fileName.equals(other.fileName) && packageKey.equals(other.packageKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return packageKey.hashCode() * 31 + fileName.hashCode();
+    }
+  }
+
+  /** A location and a package in it. */
+  private static final class PackageKey {
+    final String location;
+    final String packageName;
+
+    PackageKey(String location, String packageName) {
+      this.location = location;
+      this.packageName = packageName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof PackageKey)) {
+        return false;
+      }
+      PackageKey other = (PackageKey) o;
+      return location.equals(other.location) && packageName.equals(other.packageName);
+    }
+
+    @Override
+    public int hashCode() {
+      return location.hashCode() * 31 + packageName.hashCode();
+    }
+  }
+
+  /** A {@link ByteSource} that reads a buffer in place. */
+  private static final class ByteBufferSource extends ByteSource {
+    private final ByteBuffer buffer;
+
+    ByteBufferSource(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public InputStream openStream() {
+      final ByteBuffer stream = buffer.duplicate();
+      return new InputStream() {
+        @Override
+        public int read() {
+          return stream.hasRemaining() ? (stream.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+          if (len == 0) {
+            return 0;
+          }
+          if (!stream.hasRemaining()) {
+            return -1;
+          }
+          int read = Math.min(len, stream.remaining());
+          stream.get(b, off, read);
+          return read;
+        }
+
+        @Override
+        public long skip(long n) {
+          int skipped = (int) Math.max(0, Math.min(n, stream.remaining()));
+          stream.position(stream.position() + skipped);
+          return skipped;
+        }
+
+        @Override
+        public int available() {
+          return stream.remaining();
+        }
+      };
+    }
+
+    @Override
+    public Optional<Long> sizeIfKnown() {
+      return Optional.of((long) buffer.remaining());
+    }
+
+    @Override
+    public long size() {
+      return buffer.remaining();
+    }
+  }
 }
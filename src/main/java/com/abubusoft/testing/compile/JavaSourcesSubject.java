@@ -17,6 +17,8 @@ package com.abubusoft.testing.compile;
 
 import static com.abubusoft.testing.compile.JavaSourcesSubjectFactory.javaSources;
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.truth.Truth.assertAbout;
 import static javax.tools.JavaFileObject.Kind.CLASS;
 
@@ -25,25 +27,33 @@ import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.Sets;
 import com.google.common.io.ByteSource;
 import com.google.common.truth.FailureStrategy;
 import com.google.common.truth.Subject;
 import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.util.Trees;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import javax.annotation.processing.Processor;
 import javax.tools.Diagnostic;
@@ -63,6 +73,18 @@ public final class JavaSourcesSubject
     extends Subject<JavaSourcesSubject, Iterable<? extends JavaFileObject>>
     implements CompileTester, ProcessedCompileTesterFactory {
   private final List<String> options = new ArrayList<String>(Arrays.asList("-Xlint"));
+  private final List<InMemoryClasspath> classpaths = new ArrayList<InMemoryClasspath>();
+  private Optional<CompilationCache> compilationCache = Optional.absent();
+  private int maxDifferences = Integer.MAX_VALUE;
+  private TreeDiffer.MemberMatching memberMatching = TreeDiffer.MemberMatching.POSITIONAL;
+  private Optional<GeneratedFileConsumer> generatedFileConsumer = Optional.absent();
+  private InMemoryJavaFileManager.OutputStorage outputStorage =
+      InMemoryJavaFileManager.OutputStorage.HEAP;
+  private Compilation.Stage lastStage = Compilation.Stage.GENERATE;
+  private DiagnosticRetention diagnosticRetention = DiagnosticRetention.ALL;
+  private boolean detachedResults = false;
+  private boolean compilationConfigured = false;
+  private boolean precompiled = false;
   
   JavaSourcesSubject(FailureStrategy failureStrategy, Iterable<? extends JavaFileObject> subject) {
     super(failureStrategy, subject);
@@ -70,16 +92,100 @@ public final class JavaSourcesSubject
   
   @Override
   public JavaSourcesSubject withCompilerOptions(Iterable<String> options) {
+    configureCompilation();
     Iterables.addAll(this.options, options);
     return this;
   }
   
   @Override
   public JavaSourcesSubject withCompilerOptions(String... options) {
+    configureCompilation();
     this.options.addAll(Arrays.asList(options));
     return this;
   }
 
+  @Override
+  public JavaSourcesSubject withClasspath(InMemoryClasspath classpath) {
+    configureCompilation();
+    this.classpaths.add(checkNotNull(classpath));
+    return this;
+  }
+
+  @Override
+  public JavaSourcesSubject withCompilationCache(CompilationCache compilationCache) {
+    configureCompilation();
+    this.compilationCache = Optional.of(compilationCache);
+    return this;
+  }
+
+  @Override
+  public JavaSourcesSubject withMaxDifferences(int maxDifferences) {
+    checkArgument(maxDifferences > 0, "maxDifferences must be positive: %s", maxDifferences);
+    this.maxDifferences = maxDifferences;
+    return this;
+  }
+
+  @Override
+  public JavaSourcesSubject withMemberAlignment() {
+    return withMemberMatching(TreeDiffer.MemberMatching.ALIGNED);
+  }
+
+  @Override
+  public JavaSourcesSubject withUnorderedMembers() {
+    return withMemberMatching(TreeDiffer.MemberMatching.UNORDERED);
+  }
+
+  @Override
+  public JavaSourcesSubject withGeneratedFileConsumer(
+      GeneratedFileConsumer generatedFileConsumer) {
+    this.generatedFileConsumer = Optional.of(generatedFileConsumer);
+    return this;
+  }
+
+  @Override
+  public JavaSourcesSubject withOffHeapOutputs() {
+    configureCompilation();
+    this.outputStorage = InMemoryJavaFileManager.OutputStorage.DIRECT;
+    return this;
+  }
+
+  @Override
+  public JavaSourcesSubject withoutCodeGeneration() {
+    configureCompilation();
+    this.lastStage = Compilation.Stage.ANALYZE;
+    return this;
+  }
+
+  @Override
+  public JavaSourcesSubject withDiagnosticLimit(
+      int maxDiagnosticsPerKind, Pattern... alwaysRetained) {
+    configureCompilation();
+    this.diagnosticRetention =
+        new DiagnosticRetention(maxDiagnosticsPerKind, Arrays.asList(alwaysRetained));
+    return this;
+  }
+
+  @Override
+  public JavaSourcesSubject withDetachedResults() {
+    configureCompilation();
+    this.detachedResults = true;
+    return this;
+  }
+
+  /**
+   * Records that a setting of the compilation itself changed, which a result that was
+   * {@linkplain #precompiled compiled ahead of time} can't honor.
+   */
+  private void configureCompilation() {
+    checkState(!precompiled, "the sources were already compiled ahead of time");
+    compilationConfigured = true;
+  }
+
+  JavaSourcesSubject withMemberMatching(TreeDiffer.MemberMatching memberMatching) {
+    this.memberMatching = checkNotNull(memberMatching);
+    return this;
+  }
+
   @Override
   public CompileTester processedWith(Processor first, Processor... rest) {
     return processedWith(Lists.asList(first, rest));
@@ -110,9 +216,24 @@ public final class JavaSourcesSubject
     return new CompilationClause().failsToCompile();
   }
 
+  /**
+   * Returns a {@link CompileTester} that tests {@code result} rather than compiling the subject
+   * again. Used by {@link CompilationBatch}, which compiles the subject ahead of time.
+   *
+   * @throws IllegalStateException if a setting of the compilation (e.g. its options or
+   *     diagnostic limit) was changed on this subject, since {@code result} would ignore it
+   */
+  CompileTester precompiled(Compilation.Result result) {
+    checkState(!compilationConfigured,
+        "the sources were compiled ahead of time; configure the compilation when adding it");
+    precompiled = true;
+    return new CompilationClause(result);
+  }
+
   /** The clause in the fluent API for testing compilations. */
   private final class CompilationClause implements CompileTester {
     private final ImmutableSet<Processor> processors;
+    private final Optional<Compilation.Result> precompiledResult;
 
     private CompilationClause() {
       this(ImmutableSet.<Processor>of());
@@ -120,6 +241,45 @@ public final class JavaSourcesSubject
 
     private CompilationClause(Iterable<? extends Processor> processors) {
       this.processors = ImmutableSet.copyOf(processors);
+      this.precompiledResult = Optional.absent();
+    }
+
+    private CompilationClause(Compilation.Result precompiledResult) {
+      this.processors = ImmutableSet.of();
+      this.precompiledResult = Optional.of(precompiledResult);
+    }
+
+    /**
+     * Compiles the subject, unless it was already compiled ahead of time or an equivalent
+     * compilation is in the {@linkplain #withCompilationCache cache}.
+     */
+    private Compilation.Result compile() {
+      if (precompiledResult.isPresent()) {
+        return replayGeneratedFiles(precompiledResult.get());
+      }
+      if (compilationCache.isPresent()) {
+        // cached results are always detached, whether or not detachedResults was asked for
+        return replayGeneratedFiles(
+            compilationCache.get().compile(
+                processors, options, getSubject(), classpaths, outputStorage, lastStage,
+                diagnosticRetention));
+      }
+      return Compilation.compile(processors, options, getSubject(), classpaths,
+          generatedFileConsumer, outputStorage, lastStage,
+          detachedResults ? diagnosticRetention.detached() : diagnosticRetention);
+    }
+
+    /**
+     * Hands the files generated by a compilation that was not run for this subject to the
+     * {@linkplain #withGeneratedFileConsumer consumer}, as if they had just been written.
+     */
+    private Compilation.Result replayGeneratedFiles(Compilation.Result result) {
+      if (generatedFileConsumer.isPresent()) {
+        for (JavaFileObject generatedFile : result.generatedFilesByKind().values()) {
+          generatedFileConsumer.get().accept(generatedFile);
+        }
+      }
+      return result;
     }
 
     /** Returns a {@code String} report describing the contents of a given generated file. */
@@ -173,11 +333,21 @@ public final class JavaSourcesSubject
         }
         failureStrategy.fail(message.toString());
       }
-      final Compilation.ParseResult expectedResult = Compilation.parse(Lists.asList(first, rest));
+      // expected sources are parsed one at a time so that each parse can be cached on its own
+      ImmutableList.Builder<CompilationUnitTree> expectedTreeList = ImmutableList.builder();
+      Map<CompilationUnitTree, Trees> expectedTreesInstances =
+          new HashMap<CompilationUnitTree, Trees>();
+      for (JavaFileObject expectedSource : Lists.asList(first, rest)) {
+        Compilation.ParseResult expectedResult = ParseCache.parse(expectedSource);
+        for (CompilationUnitTree expectedTree : expectedResult.compilationUnits()) {
+          expectedTreeList.add(expectedTree);
+          expectedTreesInstances.put(expectedTree, expectedResult.trees());
+        }
+      }
       final FluentIterable<? extends CompilationUnitTree> actualTrees = FluentIterable.from(
           actualResult.compilationUnits());
       final FluentIterable<? extends CompilationUnitTree> expectedTrees = FluentIterable.from(
-          expectedResult.compilationUnits());
+          expectedTreeList.build());
 
       Function<? super CompilationUnitTree, ImmutableSet<String>> getTypesFunction =
           new Function<CompilationUnitTree, ImmutableSet<String>>() {
@@ -190,33 +360,43 @@ public final class JavaSourcesSubject
           Maps.toMap(expectedTrees, getTypesFunction);
       final ImmutableMap<? extends CompilationUnitTree, ImmutableSet<String>> actualTreeTypes =
           Maps.toMap(actualTrees, getTypesFunction);
-      final ImmutableMap<? extends CompilationUnitTree, Optional<? extends CompilationUnitTree>>
-      matchedTrees = Maps.toMap(expectedTrees,
-          new Function<CompilationUnitTree, Optional<? extends CompilationUnitTree>>() {
-        @Override public Optional<? extends CompilationUnitTree> apply(
-            final CompilationUnitTree expectedTree) {
-          return Iterables.tryFind(actualTrees,
-              new Predicate<CompilationUnitTree>() {
-            @Override public boolean apply(CompilationUnitTree actualTree) {
-              return expectedTreeTypes.get(expectedTree).equals(
-                  actualTreeTypes.get(actualTree));
-            }
-          });
+      // index the actual trees by the types they declare so that matching is a lookup per tree
+      ImmutableListMultimap<ImmutableSet<String>, CompilationUnitTree> actualTreesByTypes =
+          Multimaps.index(ImmutableList.<CompilationUnitTree>copyOf(actualTrees),
+              new Function<CompilationUnitTree, ImmutableSet<String>>() {
+                @Override public ImmutableSet<String> apply(CompilationUnitTree actualTree) {
+                  return actualTreeTypes.get(actualTree);
+                }
+              });
+
+      // every matched pair is diffed up front and concurrently, but failures are still reported
+      // in the order of the expected trees
+      List<CompilationUnitTree> matchedExpectedTrees = new ArrayList<CompilationUnitTree>();
+      List<CompilationUnitTree> matchedActualTrees = new ArrayList<CompilationUnitTree>();
+      for (CompilationUnitTree expectedTree : expectedTrees) {
+        ImmutableList<CompilationUnitTree> candidates =
+            actualTreesByTypes.get(expectedTreeTypes.get(expectedTree));
+        if (candidates.size() == 1) {
+          matchedExpectedTrees.add(expectedTree);
+          matchedActualTrees.add(candidates.get(0));
         }
-      });
-
-      for (Map.Entry<? extends CompilationUnitTree, Optional<? extends CompilationUnitTree>>
-      matchedTreePair : matchedTrees.entrySet()) {
-        final CompilationUnitTree expectedTree = matchedTreePair.getKey();
-        if (!matchedTreePair.getValue().isPresent()) {
-          failNoCandidates(expectedTreeTypes.get(expectedTree), expectedTree,
-              actualTreeTypes, actualTrees);
+      }
+      Iterator<TreeDifference> treeDifferences = TreeDiffer.diffCompilationUnits(
+          matchedExpectedTrees, matchedActualTrees, maxDifferences, memberMatching).iterator();
+
+      for (CompilationUnitTree expectedTree : expectedTrees) {
+        ImmutableSet<String> expectedTypes = expectedTreeTypes.get(expectedTree);
+        ImmutableList<CompilationUnitTree> candidates = actualTreesByTypes.get(expectedTypes);
+        if (candidates.isEmpty()) {
+          failNoCandidates(expectedTypes, expectedTree, actualTreeTypes, actualTrees);
+        } else if (candidates.size() > 1) {
+          failAmbiguousCandidates(expectedTypes, expectedTree, candidates);
         } else {
-          CompilationUnitTree actualTree = matchedTreePair.getValue().get();
-          TreeDifference treeDifference = TreeDiffer.diffCompilationUnits(expectedTree, actualTree);
+          CompilationUnitTree actualTree = candidates.get(0);
+          TreeDifference treeDifference = treeDifferences.next();
           if (!treeDifference.isEmpty()) {
             String diffReport = treeDifference.getDiffReport(
-                new TreeContext(expectedTree, expectedResult.trees()),
+                new TreeContext(expectedTree, expectedTreesInstances.get(expectedTree)),
                 new TreeContext(actualTree, actualResult.trees()));
             failWithCandidate(expectedTree.getSourceFile(), actualTree.getSourceFile(), diffReport);
           }
@@ -224,6 +404,33 @@ public final class JavaSourcesSubject
       }
     }
 
+    /**
+     * Called when the {@code generatesSources()} verb fails because several sources declare the
+     * top-level types of an expected source.
+     */
+    private void failAmbiguousCandidates(ImmutableSet<String> expectedTypes,
+        CompilationUnitTree expectedTree, Iterable<? extends CompilationUnitTree> candidates) {
+      String candidatesReport = Joiner.on('\n').join(
+          FluentIterable.from(candidates).transform(new Function<CompilationUnitTree, String>() {
+                @Override public String apply(CompilationUnitTree candidate) {
+                  return String.format("- <%s>", candidate.getSourceFile().toUri().getPath());
+                }
+              }));
+      failureStrategy.fail(Joiner.on('\n').join(
+          "",
+          "More than one source declared the same top-level types as an expected source, so it",
+          "is ambiguous which of them should match it.",
+          "",
+          String.format("Expected top-level types: <%s>", expectedTypes),
+          String.format("Declared by expected file: <%s>",
+              expectedTree.getSourceFile().toUri().getPath()),
+          "",
+          "The sources that declared those types are as follows: ",
+          "",
+          candidatesReport,
+          ""));
+    }
+
     /** Called when the {@code generatesSources()} verb fails with no diff candidates. */
     private void failNoCandidates(ImmutableSet<String> expectedTypes,
         CompilationUnitTree expectedTree,
@@ -295,8 +502,7 @@ public final class JavaSourcesSubject
     }
 
     private Compilation.Result successfulCompilationResult() {
-      Compilation.Result result =
-          Compilation.compile(processors, options, getSubject());
+      Compilation.Result result = compile();
       if (!result.successful()) {
         ImmutableList<Diagnostic<? extends JavaFileObject>> errors =
             result.diagnosticsByKind().get(Kind.ERROR);
@@ -314,7 +520,7 @@ public final class JavaSourcesSubject
 
     @Override
     public UnsuccessfulCompilationClause failsToCompile() {
-      Result result = Compilation.compile(processors, options, getSubject());
+      Result result = compile();
       if (result.successful()) {
         String message = Joiner.on('\n').join(
             "Compilation was expected to fail, but contained no errors.",
@@ -336,10 +542,19 @@ public final class JavaSourcesSubject
 
   private static String messageListing(Iterable<? extends Diagnostic<?>> diagnostics,
       String headingFormat, Object... formatArgs) {
+    List<String> messages = new ArrayList<String>();
+    for (Diagnostic<?> diagnostic : diagnostics) {
+      messages.add(diagnostic.getMessage(null));
+    }
+    return messageListingOf(messages, headingFormat, formatArgs);
+  }
+
+  private static String messageListingOf(Iterable<String> messages,
+      String headingFormat, Object... formatArgs) {
     StringBuilder listing = new StringBuilder(String.format(headingFormat, formatArgs))
         .append('\n');
-    for (Diagnostic<?> diagnostic : diagnostics) {
-      listing.append(diagnostic.getMessage(null)).append('\n');
+    for (String message : messages) {
+      listing.append(message).append('\n');
     }
     return listing.toString();
   }
@@ -409,16 +624,20 @@ public final class JavaSourcesSubject
      * Fails if the number of diagnostic messages of a given kind is not {@code expectedCount}.
      */
     protected T withDiagnosticCount(Kind kind, int expectedCount) {
-      List<Diagnostic<? extends JavaFileObject>> diagnostics = result.diagnosticsByKind().get(kind);
-      if (diagnostics.size() != expectedCount) {
-        failureStrategy.fail(
-            messageListing(
-                diagnostics,
-                "Expected %d %s, but found the following %d %s:",
-                expectedCount,
-                kindToString(kind, true),
-                diagnostics.size(),
-                kindToString(kind, true)));
+      int count = result.diagnosticCount(kind);
+      if (count != expectedCount) {
+        ImmutableList<String> messages = result.diagnosticIndex().messages(kind);
+        String listing = messageListingOf(
+            messages,
+            "Expected %d %s, but found the following %d %s:",
+            expectedCount,
+            kindToString(kind, true),
+            count,
+            kindToString(kind, true));
+        if (messages.size() < count) {
+          listing += String.format("(and %d more that were not kept)\n", count - messages.size());
+        }
+        failureStrategy.fail(listing);
       }
       return thisObject();
     }
@@ -429,20 +648,13 @@ public final class JavaSourcesSubject
      */
     protected FileClause<T> withDiagnosticContaining(
         final Kind kind, final String messageFragment) {
-      FluentIterable<Diagnostic<? extends JavaFileObject>> diagnostics =
-          FluentIterable.from(result.diagnosticsByKind().get(kind));
-      final FluentIterable<Diagnostic<? extends JavaFileObject>> diagnosticsWithMessage =
-          diagnostics.filter(
-              new Predicate<Diagnostic<?>>() {
-                @Override
-                public boolean apply(Diagnostic<?> input) {
-                  return input.getMessage(null).contains(messageFragment);
-                }
-              });
+      final DiagnosticIndex index = result.diagnosticIndex();
+      final ImmutableList<Diagnostic<? extends JavaFileObject>> diagnosticsWithMessage =
+          index.withMessageContaining(kind, messageFragment);
       if (diagnosticsWithMessage.isEmpty()) {
         failureStrategy.fail(
-            messageListing(
-                diagnostics,
+            messageListingOf(
+                index.messages(kind),
                 "Expected %s containing \"%s\", but only found:",
                 kindToString(kind, false),
                 messageFragment));
@@ -456,22 +668,28 @@ public final class JavaSourcesSubject
 
         @Override
         public LineClause<T> in(final JavaFileObject file) {
-          final FluentIterable<Diagnostic<? extends JavaFileObject>> diagnosticsInFile =
-              diagnosticsWithMessage.filter(
-                  new Predicate<Diagnostic<? extends FileObject>>() {
-                    @Override
-                    public boolean apply(Diagnostic<? extends FileObject> input) {
-                      return ((input.getSource() != null)
-                          && file.toUri().getPath().equals(input.getSource().toUri().getPath()));
-                    }
-                  });
+          final String path = file.toUri().getPath();
+          final ImmutableList<Diagnostic<? extends JavaFileObject>> diagnosticsInFile =
+              FluentIterable.from(diagnosticsWithMessage)
+                  .filter(
+                      new Predicate<Diagnostic<? extends FileObject>>() {
+                        @Override
+                        public boolean apply(Diagnostic<? extends FileObject> input) {
+                          return ((input.getSource() != null)
+                              && path.equals(input.getSource().toUri().getPath()));
+                        }
+                      })
+                  .toList();
+          // hashed by identity once, so that each line is checked without scanning the file
+          final Set<Diagnostic<?>> diagnosticsInFileSet = Sets.newIdentityHashSet();
+          diagnosticsInFileSet.addAll(diagnosticsInFile);
           if (diagnosticsInFile.isEmpty()) {
             failureStrategy.fail(
                 String.format(
                     "Expected %s in %s, but only found them in %s",
                     kindToString(kind, false),
                     file.getName(),
-                    diagnosticsWithMessage
+                    FluentIterable.from(diagnosticsWithMessage)
                         .transform(
                             new Function<Diagnostic<? extends FileObject>, String>() {
                               @Override
@@ -491,14 +709,11 @@ public final class JavaSourcesSubject
 
             @Override
             public ColumnClause<T> onLine(final long lineNumber) {
-              final FluentIterable<Diagnostic<? extends JavaFileObject>> diagnosticsOnLine =
-                  diagnosticsWithMessage.filter(
-                      new Predicate<Diagnostic<?>>() {
-                        @Override
-                        public boolean apply(Diagnostic<?> input) {
-                          return lineNumber == input.getLineNumber();
-                        }
-                      });
+              // only the diagnostics on the line are looked at, rather than every one in the file
+              final ImmutableList<Diagnostic<? extends JavaFileObject>> diagnosticsOnLine =
+                  FluentIterable.from(index.inFile(kind, path).get(lineNumber))
+                      .filter(Predicates.in(diagnosticsInFileSet))
+                      .toList();
               if (diagnosticsOnLine.isEmpty()) {
                 failureStrategy.fail(
                     String.format(
@@ -506,7 +721,7 @@ public final class JavaSourcesSubject
                         kindToString(kind, false),
                         lineNumber,
                         file.getName(),
-                        diagnosticsInFile
+                        FluentIterable.from(diagnosticsInFile)
                             .transform(
                                 new Function<Diagnostic<?>, String>() {
                                   @Override
@@ -528,7 +743,7 @@ public final class JavaSourcesSubject
                 @Override
                 public ChainingClause<T> atColumn(final long columnNumber) {
                   FluentIterable<Diagnostic<? extends JavaFileObject>> diagnosticsAtColumn =
-                      diagnosticsOnLine.filter(
+                      FluentIterable.from(diagnosticsOnLine).filter(
                           new Predicate<Diagnostic<?>>() {
                             @Override
                             public boolean apply(Diagnostic<?> input) {
@@ -543,7 +758,7 @@ public final class JavaSourcesSubject
                             lineNumber,
                             columnNumber,
                             file.getName(),
-                            diagnosticsOnLine
+                            FluentIterable.from(diagnosticsOnLine)
                                 .transform(
                                     new Function<Diagnostic<?>, String>() {
                                       @Override
@@ -644,6 +859,8 @@ public final class JavaSourcesSubject
     @Override
     public T generatesSources(JavaFileObject first, JavaFileObject... rest) {
       new JavaSourcesSubject(failureStrategy, result.generatedSources())
+          .withMaxDifferences(maxDifferences)
+          .withMemberMatching(memberMatching)
           .parsesAs(first, rest);
       return thisObject();
     }
@@ -686,8 +903,7 @@ public final class JavaSourcesSubject
 
       for (JavaFileObject generated : result.generatedFilesByKind().values()) {
         if (generated.toUri().getPath().endsWith(expectedFilename)) {
-          return new SuccessfulFileBuilder<T>(
-              this, generated.toUri().getPath(), JavaFileObjects.asByteSource(generated));
+          return new SuccessfulFileBuilder<T>(this, generated.toUri().getPath(), generated);
         }
       }
       StringBuilder encounteredFiles = new StringBuilder();
@@ -750,15 +966,17 @@ public final class JavaSourcesSubject
   private final class SuccessfulFileBuilder<T> implements SuccessfulFileClause<T> {
     private final GeneratedPredicateClause<T> chainedClause;
     private final String generatedFilePath;
+    private final JavaFileObject generatedFile;
     private final ByteSource generatedByteSource;
 
     SuccessfulFileBuilder(
         GeneratedPredicateClause<T> chainedClause,
         String generatedFilePath,
-        ByteSource generatedByteSource) {
+        JavaFileObject generatedFile) {
       this.chainedClause = chainedClause;
       this.generatedFilePath = generatedFilePath;
-      this.generatedByteSource = generatedByteSource;
+      this.generatedFile = generatedFile;
+      this.generatedByteSource = JavaFileObjects.asByteSource(generatedFile);
     }
 
     @Override
@@ -782,7 +1000,10 @@ public final class JavaSourcesSubject
     @Override
     public SuccessfulFileClause<T> withStringContents(Charset charset, String expectedString) {
       try {
-        String generatedString = generatedByteSource.asCharSource(charset).read();
+        // generated files are written in the default charset, and can be read as such directly
+        String generatedString = charset.equals(Charset.defaultCharset())
+            ? generatedFile.getCharContent(false).toString()
+            : generatedByteSource.asCharSource(charset).read();
         if (!generatedString.equals(expectedString)) {
           failureStrategy.failComparing(
               "The contents in " + generatedFilePath + " did not match the expected string",
@@ -821,6 +1042,58 @@ public final class JavaSourcesSubject
       return delegate.withCompilerOptions(options);
     }    
 
+    @Override
+    public JavaSourcesSubject withClasspath(InMemoryClasspath classpath) {
+      return delegate.withClasspath(classpath);
+    }
+
+    @Override
+    public JavaSourcesSubject withCompilationCache(CompilationCache compilationCache) {
+      return delegate.withCompilationCache(compilationCache);
+    }
+
+    @Override
+    public JavaSourcesSubject withMaxDifferences(int maxDifferences) {
+      return delegate.withMaxDifferences(maxDifferences);
+    }
+
+    @Override
+    public JavaSourcesSubject withMemberAlignment() {
+      return delegate.withMemberAlignment();
+    }
+
+    @Override
+    public JavaSourcesSubject withUnorderedMembers() {
+      return delegate.withUnorderedMembers();
+    }
+
+    @Override
+    public JavaSourcesSubject withGeneratedFileConsumer(
+        GeneratedFileConsumer generatedFileConsumer) {
+      return delegate.withGeneratedFileConsumer(generatedFileConsumer);
+    }
+
+    @Override
+    public JavaSourcesSubject withOffHeapOutputs() {
+      return delegate.withOffHeapOutputs();
+    }
+
+    @Override
+    public JavaSourcesSubject withoutCodeGeneration() {
+      return delegate.withoutCodeGeneration();
+    }
+
+    @Override
+    public JavaSourcesSubject withDiagnosticLimit(
+        int maxDiagnosticsPerKind, Pattern... alwaysRetained) {
+      return delegate.withDiagnosticLimit(maxDiagnosticsPerKind, alwaysRetained);
+    }
+
+    @Override
+    public JavaSourcesSubject withDetachedResults() {
+      return delegate.withDetachedResults();
+    }
+
     @Override
     public CompileTester processedWith(Processor first, Processor... rest) {
       return delegate.newCompilationClause(Lists.asList(first, rest));
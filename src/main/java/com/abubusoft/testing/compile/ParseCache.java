@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.processing.Processor;
+import javax.tools.JavaFileObject;
+
+/**
+ * A JVM-wide cache of the parse results of expected sources.
+ *
+ * <p>The same golden files tend to be compared against the output of many tests, so
+ * {@link JavaSourcesSubject#parsesAs} parses each expected source on its own and keeps the result,
+ * keyed by the URI and contents of the source. A source loaded again (e.g. by another call to
+ * {@link JavaFileObjects#forResource}) is then only hashed. Parse trees are never modified once
+ * parsed, so a cached result can be shared by any number of tests, on any thread.
+ *
+ * <p>Each result retains the parser that produced it, so the cache holds a bounded number of
+ * results and lets the garbage collector reclaim them under memory pressure.
+ */
+final class ParseCache {
+  private static final int MAX_CACHED_SOURCES = 512;
+
+  private static final Cache<HashCode, Compilation.ParseResult> parseResults =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_SOURCES).softValues().build();
+
+  private ParseCache() {}
+
+  /**
+   * Returns the result of {@linkplain Compilation#parse parsing} {@code source} alone, parsing it
+   * only if no source with the same URI and contents was parsed before.
+   */
+  static Compilation.ParseResult parse(final JavaFileObject source) {
+    // a parse is keyed like a compilation of the source with neither options nor processors
+    HashCode key = CompilationCache.key(
+        ImmutableSet.<Processor>of(), ImmutableList.<String>of(), ImmutableList.of(source));
+    try {
+      return parseResults.get(key, new Callable<Compilation.ParseResult>() {
+        @Override public Compilation.ParseResult call() {
+          return Compilation.parse(ImmutableList.of(source));
+        }
+      });
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+}
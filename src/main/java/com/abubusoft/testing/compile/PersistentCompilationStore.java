@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.google.common.base.Functions;
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.Ordering;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * The on-disk layer of a {@linkplain CompilationCache#persistent persistent}
+ * {@link CompilationCache}. Each compilation result is stored in its own file, named after a hash
+ * of the compilation, in a directory that can be shared by any number of JVMs.
+ *
+ * <p>Because a stored result may outlive the JVM that produced it, its key also covers the Java
+ * version and the contents of the class path entry (directory or jar) each processor class was
+ * loaded from, so that a changed processor or compiler is never replayed from an old result.
+ *
+ * <p>Results are written to a temporary file and then moved into place, so concurrent readers
+ * never see a partial result. Reading a result marks it as recently used; the least recently used
+ * results are deleted once the directory holds more than its limit. Storing results is a best
+ * effort: I/O errors are ignored, and unreadable results are deleted and treated as absent.
+ */
+final class PersistentCompilationStore {
+  /** Changes whenever the format of the stored results changes. */
+  private static final int FORMAT_VERSION = 2;
+  private static final String RESULT_SUFFIX = ".result";
+  private static final HashFunction HASH_FUNCTION = Hashing.sha256();
+
+  private static final FileFilter RESULT_FILES = new FileFilter() {
+    @Override public boolean accept(File file) {
+      return file.isFile() && file.getName().endsWith(RESULT_SUFFIX);
+    }
+  };
+
+  private static final LoadingCache<Class<?>, HashCode> codeSourceHashes =
+      CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Class<?>, HashCode>() {
+        @Override public HashCode load(Class<?> type) throws IOException {
+          return hashCodeSource(type);
+        }
+      });
+
+  private final File directory;
+  private final long maxBytes;
+
+  PersistentCompilationStore(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the key under which to store the compilation identified by {@code compilationKey},
+   * which was made with {@code processors}.
+   */
+  HashCode key(HashCode compilationKey, Iterable<? extends Processor> processors) {
+    Hasher hasher = HASH_FUNCTION.newHasher()
+        .putInt(FORMAT_VERSION)
+        .putBytes(compilationKey.asBytes());
+    putString(hasher, System.getProperty("java.vendor"));
+    putString(hasher, System.getProperty("java.version"));
+    for (Processor processor : processors) {
+      hasher.putBytes(codeSourceHashes.getUnchecked(processor.getClass()).asBytes());
+    }
+    return hasher.hash();
+  }
+
+  /**
+   * Returns the result stored under {@code key}, if any, keeping the contents of its generated
+   * files as {@code outputStorage} says. Diagnostics reported on one of the {@code sources} or on
+   * a generated file refer to that file object; any other diagnostic has no source.
+   */
+  Optional<Compilation.Result> read(HashCode key, Iterable<? extends JavaFileObject> sources,
+      InMemoryJavaFileManager.OutputStorage outputStorage) {
+    File file = fileFor(key);
+    if (!file.isFile()) {
+      return Optional.absent();
+    }
+    try {
+      Compilation.Result result = decode(Files.toByteArray(file), sources, outputStorage);
+      file.setLastModified(System.currentTimeMillis());
+      return Optional.of(result);
+    } catch (IOException e) {
+      file.delete();
+      return Optional.absent();
+    } catch (RuntimeException e) {
+      // a corrupt result can fail to decode in any number of ways (e.g. an unknown kind, or a
+      // failed result without errors); either way it can't be replayed
+      file.delete();
+      return Optional.absent();
+    }
+  }
+
+  /** Stores {@code result} under {@code key}, then evicts results beyond the size limit. */
+  void write(HashCode key, Compilation.Result result) {
+    File temporaryFile = null;
+    try {
+      byte[] encoded = encode(result);
+      directory.mkdirs();
+      temporaryFile = File.createTempFile(key.toString(), ".tmp", directory);
+      Files.write(encoded, temporaryFile);
+      try {
+        java.nio.file.Files.move(temporaryFile.toPath(), fileFor(key).toPath(), ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        java.nio.file.Files.move(temporaryFile.toPath(), fileFor(key).toPath(), REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      // the result simply isn't stored
+    } finally {
+      if (temporaryFile != null) {
+        temporaryFile.delete();
+      }
+    }
+    evict();
+  }
+
+  private File fileFor(HashCode key) {
+    return new File(directory, key + RESULT_SUFFIX);
+  }
+
+  /** Deletes the least recently used results until the rest fit within {@code maxBytes}. */
+  private void evict() {
+    File[] files = directory.listFiles(RESULT_FILES);
+    if (files == null) {
+      return;
+    }
+    long totalBytes = 0;
+    // snapshot the times so that concurrent reads can't change the order while sorting
+    Map<File, Long> lastModified = new HashMap<File, Long>();
+    for (File file : files) {
+      totalBytes += file.length();
+      lastModified.put(file, file.lastModified());
+    }
+    if (totalBytes <= maxBytes) {
+      return;
+    }
+    List<File> leastRecentlyUsedFirst = new ArrayList<File>(Arrays.asList(files));
+    Collections.sort(leastRecentlyUsedFirst,
+        Ordering.natural().onResultOf(Functions.forMap(lastModified)));
+    for (File file : leastRecentlyUsedFirst) {
+      if (totalBytes <= maxBytes) {
+        break;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        totalBytes -= length;
+      }
+    }
+  }
+
+  private static byte[] encode(Compilation.Result result) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(FORMAT_VERSION);
+    out.writeBoolean(result.successful());
+    ImmutableCollection<JavaFileObject> generatedFiles = result.generatedFilesByKind().values();
+    out.writeInt(generatedFiles.size());
+    for (JavaFileObject generatedFile : generatedFiles) {
+      writeString(out, generatedFile.toUri().toString());
+      out.writeLong(generatedFile.getLastModified());
+      Optional<byte[]> contents = contentsOf(generatedFile);
+      out.writeBoolean(contents.isPresent());
+      if (contents.isPresent()) {
+        out.writeInt(contents.get().length);
+        out.write(contents.get());
+      }
+    }
+    ImmutableCollection<Diagnostic<? extends JavaFileObject>> diagnostics =
+        result.diagnosticsByKind().values();
+    out.writeInt(diagnostics.size());
+    for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
+      writeString(out, diagnostic.getKind().name());
+      JavaFileObject source = diagnostic.getSource();
+      writeNullableString(out, (source == null) ? null : source.toUri().toString());
+      out.writeLong(diagnostic.getPosition());
+      out.writeLong(diagnostic.getStartPosition());
+      out.writeLong(diagnostic.getEndPosition());
+      out.writeLong(diagnostic.getLineNumber());
+      out.writeLong(diagnostic.getColumnNumber());
+      writeNullableString(out, diagnostic.getCode());
+      writeString(out, diagnostic.getMessage(null));
+      writeString(out, diagnostic.toString());
+    }
+    for (Diagnostic.Kind kind : Diagnostic.Kind.values()) {
+      out.writeInt(result.diagnosticCount(kind));
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static Compilation.Result decode(byte[] encoded,
+      Iterable<? extends JavaFileObject> sources,
+      InMemoryJavaFileManager.OutputStorage outputStorage) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+    if (in.readInt() != FORMAT_VERSION) {
+      throw new IOException("unknown format");
+    }
+    boolean successful = in.readBoolean();
+    Map<String, JavaFileObject> filesByUri = new HashMap<String, JavaFileObject>();
+    for (JavaFileObject source : sources) {
+      filesByUri.put(source.toUri().toString(), source);
+    }
+    int generatedFileCount = readLength(in);
+    List<JavaFileObject> generatedFiles = new ArrayList<JavaFileObject>(generatedFileCount);
+    for (int i = 0; i < generatedFileCount; i++) {
+      String uri = readString(in);
+      long lastModified = in.readLong();
+      Optional<byte[]> contents = Optional.absent();
+      if (in.readBoolean()) {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        contents = Optional.of(bytes);
+      }
+      JavaFileObject generatedFile = InMemoryJavaFileManager.restoredOutputFile(
+          URI.create(uri), contents, lastModified, outputStorage);
+      generatedFiles.add(generatedFile);
+      filesByUri.put(uri, generatedFile);
+    }
+    int diagnosticCount = readLength(in);
+    List<Diagnostic<? extends JavaFileObject>> diagnostics =
+        new ArrayList<Diagnostic<? extends JavaFileObject>>(diagnosticCount);
+    for (int i = 0; i < diagnosticCount; i++) {
+      Diagnostic.Kind kind = Diagnostic.Kind.valueOf(readString(in));
+      String sourceUri = readNullableString(in);
+      diagnostics.add(new DetachedDiagnostic(kind,
+          (sourceUri == null) ? null : filesByUri.get(sourceUri),
+          in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong(),
+          readNullableString(in), readString(in), readString(in)));
+    }
+    ImmutableMultiset.Builder<Diagnostic.Kind> diagnosticCounts = ImmutableMultiset.builder();
+    for (Diagnostic.Kind kind : Diagnostic.Kind.values()) {
+      diagnosticCounts.addCopies(kind, in.readInt());
+    }
+    return new Compilation.Result(successful, Compilation.sortDiagnosticsByKind(diagnostics),
+        diagnosticCounts.build(), generatedFiles);
+  }
+
+  /** Returns the contents of {@code file}, or absent if nothing was ever written to it. */
+  private static Optional<byte[]> contentsOf(JavaFileObject file) throws IOException {
+    try {
+      return Optional.of(JavaFileObjects.asByteSource(file).read());
+    } catch (FileNotFoundException e) {
+      return Optional.absent();
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeNullableString(DataOutputStream out, @Nullable String string)
+      throws IOException {
+    out.writeBoolean(string != null);
+    if (string != null) {
+      writeString(out, string);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[readLength(in)];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  /**
+   * Reads the length of an array, or the number of elements of a list, that follows in {@code in}.
+   * Every element takes at least one byte, so a length beyond the bytes remaining in the encoded
+   * result means it is corrupt; checking it up front avoids allocating an arbitrarily large array.
+   */
+  private static int readLength(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > in.available()) {
+      throw new IOException("corrupt length: " + length);
+    }
+    return length;
+  }
+
+  @Nullable
+  private static String readNullableString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? readString(in) : null;
+  }
+
+  private static void putString(Hasher hasher, @Nullable String string) {
+    String nonNull = String.valueOf(string);
+    hasher.putInt(nonNull.length()).putString(nonNull, UTF_8);
+  }
+
+  /**
+   * Returns a hash of the name of {@code type} and of the contents of the class path entry it was
+   * loaded from. Classes without a local class path entry (e.g. platform classes) are identified
+   * by name alone; the Java version covers them.
+   */
+  private static HashCode hashCodeSource(Class<?> type) throws IOException {
+    Hasher hasher = HASH_FUNCTION.newHasher();
+    putString(hasher, type.getName());
+    CodeSource codeSource = type.getProtectionDomain().getCodeSource();
+    if (codeSource == null || codeSource.getLocation() == null
+        || !"file".equals(codeSource.getLocation().getProtocol())) {
+      return hasher.hash();
+    }
+    File location;
+    try {
+      location = new File(codeSource.getLocation().toURI());
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+    if (location.isFile()) {
+      hasher.putBytes(Files.asByteSource(location).hash(HASH_FUNCTION).asBytes());
+    } else if (location.isDirectory()) {
+      // sorted by path so that the hash doesn't depend on the order the file system lists files
+      Map<String, File> filesByPath = new HashMap<String, File>();
+      for (File file : Files.fileTreeTraverser().preOrderTraversal(location)) {
+        if (file.isFile()) {
+          filesByPath.put(location.toURI().relativize(file.toURI()).getPath(), file);
+        }
+      }
+      for (String path : Ordering.natural().sortedCopy(filesByPath.keySet())) {
+        putString(hasher, path);
+        hasher.putBytes(Files.asByteSource(filesByPath.get(path)).hash(HASH_FUNCTION).asBytes());
+      }
+    }
+    return hasher.hash();
+  }
+}
@@ -15,6 +15,8 @@
  */
 package com.abubusoft.testing.compile;
 
+import java.util.regex.Pattern;
+
 import javax.annotation.CheckReturnValue;
 import javax.annotation.processing.Processor;
 
@@ -37,6 +39,98 @@ public interface ProcessedCompileTesterFactory {
    * default.
    */
   @CheckReturnValue ProcessedCompileTesterFactory withCompilerOptions(String... options);
+
+  /**
+   * Compiles against the class files of {@code classpath} rather than their sources. They are
+   * searched, in the order the class paths were added, before the class path of the compiler.
+   */
+  @CheckReturnValue
+  ProcessedCompileTesterFactory withClasspath(InMemoryClasspath classpath);
+
+  /**
+   * Looks up the result of the compilation being tested in {@code compilationCache}, compiling
+   * and caching it only if no equivalent compilation was cached before.
+   */
+  @CheckReturnValue
+  ProcessedCompileTesterFactory withCompilationCache(CompilationCache compilationCache);
+
+  /**
+   * Limits the differences reported when a source doesn't match an expected source, by
+   * {@link CompileTester#parsesAs} or {@code generatesSources}, to the first
+   * {@code maxDifferences}. Sources are not compared any further once that many differences were
+   * found.
+   */
+  @CheckReturnValue
+  ProcessedCompileTesterFactory withMaxDifferences(int maxDifferences);
+
+  /**
+   * Compares the members of classes, the statements of blocks and the imports of sources with
+   * expected sources, by {@link CompileTester#parsesAs} or {@code generatesSources}, by aligning
+   * their equal elements rather than by position. An inserted or removed member is then reported
+   * on its own instead of every member after it differing too.
+   */
+  @CheckReturnValue
+  ProcessedCompileTesterFactory withMemberAlignment();
+
+  /**
+   * Compares the members of classes with those of expected sources, by
+   * {@link CompileTester#parsesAs} or {@code generatesSources}, regardless of the order they are
+   * declared in. Methods are paired up by name and parameter types, and fields and nested classes
+   * by name. This replaces {@link #withMemberAlignment}, and vice versa.
+   */
+  @CheckReturnValue
+  ProcessedCompileTesterFactory withUnorderedMembers();
+
+  /**
+   * Hands each file generated by the compilation being tested to {@code generatedFileConsumer} as
+   * soon as it has been written, so that outputs can be checked while the compilation is still
+   * running. When the result comes from a {@link CompilationCache}, its files are handed over
+   * once the result is available instead. The consumer is called on the compiling thread.
+   */
+  @CheckReturnValue
+  ProcessedCompileTesterFactory withGeneratedFileConsumer(
+      CompileTester.GeneratedFileConsumer generatedFileConsumer);
+
+  /**
+   * Keeps the contents of the files generated by the compilation being tested in direct buffers
+   * outside of the heap, and reads them back without copying. This keeps large outputs from
+   * adding to garbage collection pauses; they count against {@code -XX:MaxDirectMemorySize}
+   * instead. This also applies to results from a {@link CompilationCache}.
+   */
+  @CheckReturnValue
+  ProcessedCompileTesterFactory withOffHeapOutputs();
+
+  /**
+   * Stops the compilation being tested once annotation processing, attribution and flow analysis
+   * are done, without generating or writing class files. Errors, warnings and generated sources
+   * are reported as usual, but no {@link javax.tools.JavaFileObject.Kind#CLASS CLASS} files are
+   * generated, so assertions about them fail.
+   */
+  @CheckReturnValue
+  ProcessedCompileTesterFactory withoutCodeGeneration();
+
+  /**
+   * Keeps only the first {@code maxDiagnosticsPerKind} diagnostics of each kind that the
+   * compilation being tested reports, and any others whose message
+   * {@linkplain java.util.regex.Matcher#find contains a match} for one of
+   * {@code alwaysRetained}. This bounds the memory held by compilations that report very many
+   * diagnostics. Counts, as in
+   * {@link CompileTester.CompilationWithWarningsClause#withWarningCount withWarningCount}, stay
+   * exact, but only the diagnostics that were kept can be found by message.
+   */
+  @CheckReturnValue
+  ProcessedCompileTesterFactory withDiagnosticLimit(
+      int maxDiagnosticsPerKind, Pattern... alwaysRetained);
+
+  /**
+   * Keeps copies of the diagnostics reported by the compilation being tested that hold no
+   * reference to the compiler, so that its symbol tables and syntax trees can be garbage
+   * collected as soon as the compilation is over rather than once the assertions about it are.
+   * Messages are formatted when each diagnostic is reported. Results from a
+   * {@link CompilationCache} are always kept this way.
+   */
+  @CheckReturnValue
+  ProcessedCompileTesterFactory withDetachedResults();
   
   /** Adds {@linkplain Processor annotation processors} to the compilation being tested.  */
   @CheckReturnValue
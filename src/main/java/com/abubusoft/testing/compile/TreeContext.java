@@ -18,13 +18,21 @@ package com.abubusoft.testing.compile;
 import static com.google.common.base.Preconditions.checkArgument;
 import static javax.tools.Diagnostic.NOPOS;
 
+import com.google.common.base.Optional;
 import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.LineMap;
 import com.sun.source.tree.Tree;
 import com.sun.source.util.SourcePositions;
 import com.sun.source.util.TreePath;
+import com.sun.source.util.TreePathScanner;
 import com.sun.source.util.Trees;
 
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
 /**
  * A class for managing and retrieving contextual information for Compilation Trees.
  *
@@ -32,6 +40,10 @@ import com.sun.source.util.Trees;
  * {@code SourcePositions}, and {@code LineMap} instances. It acts as a client to the contextual
  * information these objects can provide for {@code Tree}s within the {@code CompilationUnitTree}.
  *
+ * <p>The first lookup by {@code Tree} indexes the whole {@code CompilationUnitTree} in a single
+ * pass, so that later lookups don't scan it again. Lookups by {@code TreePath} need no index.
+ * Instances are not safe for use by several threads.
+ *
  * @author Stephen Pratt
  */
 final class TreeContext {
@@ -39,6 +51,10 @@ final class TreeContext {
   private final Trees trees;
   private final SourcePositions sourcePositions;
   private final LineMap lineMap;
+  /** The path to the parent of every node but the compilation unit, built on first use. */
+  @Nullable private Map<Tree, TreePath> parentPaths;
+  /** The text of the source file of the compilation unit, read on first use. */
+  @Nullable private Optional<CharSequence> sourceText;
 
   TreeContext(CompilationUnitTree compilationUnit, Trees trees) {
     this.compilationUnit = compilationUnit;
@@ -65,11 +81,32 @@ final class TreeContext {
    *   object's {@code CompilationUnitTree}.
    */
   TreePath getNodePath(Tree node) {
-    TreePath treePath = trees.getPath(compilationUnit, node);
-    checkArgument(treePath != null, "The node provided was not a subtree of the "
-        + "CompilationUnitTree in this TreeContext. CompilationUnit: %s; Node:",
+    if (node == compilationUnit) {
+      return new TreePath(compilationUnit);
+    }
+    TreePath parentPath = parentPaths().get(node);
+    checkArgument(parentPath != null, "The node provided was not a subtree of the "
+        + "CompilationUnitTree in this TreeContext. CompilationUnit: %s; Node: %s",
         compilationUnit, node);
-    return treePath;
+    return new TreePath(parentPath, node);
+  }
+
+  private Map<Tree, TreePath> parentPaths() {
+    if (parentPaths == null) {
+      final Map<Tree, TreePath> index = new IdentityHashMap<Tree, TreePath>();
+      new TreePathScanner<Void, Void>() {
+        @Override
+        public Void scan(Tree tree, Void p) {
+          // like Trees.getPath(), keep the first path to a node that is reachable more than once
+          if (tree != null && !index.containsKey(tree)) {
+            index.put(tree, getCurrentPath());
+          }
+          return super.scan(tree, p);
+        }
+      }.scan(new TreePath(compilationUnit), null);
+      parentPaths = index;
+    }
+    return parentPaths;
   }
 
   /**
@@ -85,7 +122,18 @@ final class TreeContext {
    *   object's {@code CompilationUnitTree}.
    */
   long getNodeStartLine(Tree node) {
-    long startPosition = getNodeStartPosition(node);
+    return getNodeStartLine(getNodePath(node));
+  }
+
+  /**
+   * Like {@link #getNodeStartLine(Tree)}, but climbs {@code nodePath} rather than looking up the
+   * path to its leaf.
+   *
+   * @throws IllegalArgumentException if {@code nodePath} is not a path within this object's
+   *   {@code CompilationUnitTree}.
+   */
+  long getNodeStartLine(TreePath nodePath) {
+    long startPosition = getNodeStartPosition(nodePath);
     return startPosition == NOPOS ? NOPOS : lineMap.getLineNumber(startPosition);
   }
 
@@ -102,7 +150,18 @@ final class TreeContext {
    *   object's {@code CompilationUnitTree}.
    */
   long getNodeStartColumn(Tree node) {
-    long startPosition = getNodeStartPosition(node);
+    return getNodeStartColumn(getNodePath(node));
+  }
+
+  /**
+   * Like {@link #getNodeStartColumn(Tree)}, but climbs {@code nodePath} rather than looking up the
+   * path to its leaf.
+   *
+   * @throws IllegalArgumentException if {@code nodePath} is not a path within this object's
+   *   {@code CompilationUnitTree}.
+   */
+  long getNodeStartColumn(TreePath nodePath) {
+    long startPosition = getNodeStartPosition(nodePath);
     return startPosition == NOPOS ? NOPOS : lineMap.getColumnNumber(startPosition);
   }
 
@@ -119,7 +178,18 @@ final class TreeContext {
    *   object's {@code CompilationUnitTree}.
    */
   long getNodeEndLine(Tree node) {
-    long endPosition = getNodeEndPosition(node);
+    return getNodeEndLine(getNodePath(node));
+  }
+
+  /**
+   * Like {@link #getNodeEndLine(Tree)}, but climbs {@code nodePath} rather than looking up the
+   * path to its leaf.
+   *
+   * @throws IllegalArgumentException if {@code nodePath} is not a path within this object's
+   *   {@code CompilationUnitTree}.
+   */
+  long getNodeEndLine(TreePath nodePath) {
+    long endPosition = getNodeEndPosition(nodePath);
     return endPosition == NOPOS ? NOPOS : lineMap.getLineNumber(endPosition);
   }
 
@@ -136,7 +206,18 @@ final class TreeContext {
    *   object's {@code CompilationUnitTree}.
    */
   long getNodeEndColumn(Tree node) {
-    long endPosition = getNodeEndPosition(node);
+    return getNodeEndColumn(getNodePath(node));
+  }
+
+  /**
+   * Like {@link #getNodeEndColumn(Tree)}, but climbs {@code nodePath} rather than looking up the
+   * path to its leaf.
+   *
+   * @throws IllegalArgumentException if {@code nodePath} is not a path within this object's
+   *   {@code CompilationUnitTree}.
+   */
+  long getNodeEndColumn(TreePath nodePath) {
+    long endPosition = getNodeEndPosition(nodePath);
     return endPosition == NOPOS ? NOPOS : lineMap.getColumnNumber(endPosition);
   }
 
@@ -153,7 +234,20 @@ final class TreeContext {
    *   object's {@code CompilationUnitTree}.
    */
   long getNodeStartPosition(Tree node) {
-    TreePath currentNode = getNodePath(node);
+    return getNodeStartPosition(getNodePath(node));
+  }
+
+  /**
+   * Like {@link #getNodeStartPosition(Tree)}, but climbs {@code nodePath} rather than looking up
+   * the path to its leaf.
+   *
+   * @throws IllegalArgumentException if {@code nodePath} is not a path within this object's
+   *   {@code CompilationUnitTree}.
+   */
+  long getNodeStartPosition(TreePath nodePath) {
+    checkArgument(nodePath.getCompilationUnit() == compilationUnit,
+        "The path provided was not in the CompilationUnitTree in this TreeContext: %s", nodePath);
+    TreePath currentNode = nodePath;
     while (currentNode != null) {
       long startPosition = sourcePositions.getStartPosition(compilationUnit, currentNode.getLeaf());
       if (startPosition != NOPOS) {
@@ -177,8 +271,21 @@ final class TreeContext {
    *   object's {@code CompilationUnitTree}.
    */
   long getNodeEndPosition(Tree node) {
-    TreePath currentNode = getNodePath(node);
-    while (node != null) {
+    return getNodeEndPosition(getNodePath(node));
+  }
+
+  /**
+   * Like {@link #getNodeEndPosition(Tree)}, but climbs {@code nodePath} rather than looking up the
+   * path to its leaf.
+   *
+   * @throws IllegalArgumentException if {@code nodePath} is not a path within this object's
+   *   {@code CompilationUnitTree}.
+   */
+  long getNodeEndPosition(TreePath nodePath) {
+    checkArgument(nodePath.getCompilationUnit() == compilationUnit,
+        "The path provided was not in the CompilationUnitTree in this TreeContext: %s", nodePath);
+    TreePath currentNode = nodePath;
+    while (currentNode != null) {
       long endPosition = sourcePositions.getEndPosition(compilationUnit, currentNode.getLeaf());
       if (endPosition != NOPOS) {
         return endPosition;
@@ -187,4 +294,34 @@ final class TreeContext {
     }
     return NOPOS;
   }
-}
\ No newline at end of file
+
+  /**
+   * Returns the text of the source file between the start and end positions of the leaf of
+   * {@code nodePath}, or absent if the leaf has no positions of its own or the source file can't
+   * be read.
+   *
+   * @throws IllegalArgumentException if {@code nodePath} is not a path within this object's
+   *   {@code CompilationUnitTree}.
+   */
+  Optional<CharSequence> getNodeSource(TreePath nodePath) {
+    checkArgument(nodePath.getCompilationUnit() == compilationUnit,
+        "The path provided was not in the CompilationUnitTree in this TreeContext: %s", nodePath);
+    long startPosition = sourcePositions.getStartPosition(compilationUnit, nodePath.getLeaf());
+    long endPosition = sourcePositions.getEndPosition(compilationUnit, nodePath.getLeaf());
+    if (startPosition == NOPOS || endPosition < startPosition) {
+      return Optional.absent();
+    }
+    if (sourceText == null) {
+      try {
+        sourceText = Optional.of(compilationUnit.getSourceFile().getCharContent(true));
+      } catch (IOException e) {
+        sourceText = Optional.absent();
+      }
+    }
+    if (!sourceText.isPresent() || endPosition > sourceText.get().length()) {
+      return Optional.absent();
+    }
+    return Optional.<CharSequence>of(
+        sourceText.get().subSequence((int) startPosition, (int) endPosition));
+  }
+}
@@ -15,10 +15,16 @@
  */
 package com.abubusoft.testing.compile;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import com.sun.source.tree.AnnotationTree;
 import com.sun.source.tree.ArrayAccessTree;
@@ -72,7 +78,17 @@ import com.sun.source.tree.WildcardTree;
 import com.sun.source.util.SimpleTreeVisitor;
 import com.sun.source.util.TreePath;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 import javax.lang.model.element.Name;
@@ -85,9 +101,15 @@ import javax.lang.model.element.Name;
  * nodes do not appear in the same order. However, the ordering of the {@code TreeDifference}
  * entries that this class produces is always unspecified.
  *
- * <p>Future releases of this class will likely attempt to match corresponding sub{@code Tree}s
- * and ensure that those similarities are reflected in the diff report. No such attempt is made in
- * this release.
+ * <p>Subtrees whose {@linkplain TreeFingerprinter structural fingerprints} are equal are known to
+ * have no differences and are skipped, so diffing two equal compilation units only compares their
+ * fingerprints.
+ *
+ * <p>By default, the elements of every list of child nodes are compared by position. With
+ * {@link MemberMatching#ALIGNED}, the members of classes, the statements of blocks and the imports
+ * of compilation units are first aligned on their equal elements, so that an inserted element is
+ * reported on its own. With {@link MemberMatching#UNORDERED}, class members are paired up by
+ * signature and their order is ignored.
  *
  * @author Stephen Pratt
  */
@@ -95,14 +117,115 @@ import javax.lang.model.element.Name;
 final class TreeDiffer {
   private TreeDiffer() {}
 
+  /**
+   * How the members of classes, the statements of blocks and the imports of compilation units are
+   * paired up for comparison.
+   */
+  enum MemberMatching {
+    /** The <i>n</i>th expected element is compared with the <i>n</i>th actual element. */
+    POSITIONAL,
+    /**
+     * Equal elements are aligned along the longest common subsequence of both lists, so that an
+     * inserted or removed element is reported as extra instead of shifting every element after
+     * it out of place. Only the elements in between aligned ones are compared with each other.
+     */
+    ALIGNED,
+    /**
+     * Class members are paired up by their signature wherever they are declared, so that
+     * reordered members have no differences. Statements and imports are compared by position.
+     */
+    UNORDERED,
+  }
+
   /**
    * Returns a {@code TreeDifference} describing the difference between the two
    * {@code CompilationUnitTree}s provided.
    */
   static final TreeDifference diffCompilationUnits(@Nullable CompilationUnitTree expected,
       @Nullable CompilationUnitTree actual) {
-    TreeDifference.Builder diffBuilder = new TreeDifference.Builder();
-    DiffVisitor diffVisitor = new DiffVisitor(diffBuilder);
+    return diffCompilationUnits(expected, actual, new TreeDifference.Builder());
+  }
+
+  /**
+   * Returns a {@code TreeDifference} describing at most the first {@code maxDifferences}
+   * differences between the two {@code CompilationUnitTree}s provided. The trees are not compared
+   * any further once more differences were found.
+   */
+  static final TreeDifference diffCompilationUnits(@Nullable CompilationUnitTree expected,
+      @Nullable CompilationUnitTree actual, int maxDifferences) {
+    return diffCompilationUnits(expected, actual, maxDifferences, MemberMatching.POSITIONAL);
+  }
+
+  /**
+   * Returns a {@code TreeDifference} describing at most the first {@code maxDifferences}
+   * differences between the two {@code CompilationUnitTree}s provided, pairing up their members,
+   * statements and imports as {@code memberMatching} says.
+   */
+  static final TreeDifference diffCompilationUnits(@Nullable CompilationUnitTree expected,
+      @Nullable CompilationUnitTree actual, int maxDifferences, MemberMatching memberMatching) {
+    return diffCompilationUnits(expected, actual, new TreeDifference.Builder(maxDifferences),
+        checkNotNull(memberMatching));
+  }
+
+  /**
+   * Returns the differences between each of the {@code expecteds} and the compilation unit at the
+   * same index in {@code actuals}, in the same order. The pairs are diffed concurrently, which is
+   * safe since the trees are only read.
+   */
+  static ImmutableList<TreeDifference> diffCompilationUnits(
+      List<? extends CompilationUnitTree> expecteds, List<? extends CompilationUnitTree> actuals,
+      final int maxDifferences, final MemberMatching memberMatching) {
+    checkArgument(expecteds.size() == actuals.size(),
+        "%s expected but %s actual compilation units", expecteds.size(), actuals.size());
+    if (expecteds.size() < 2) {
+      return expecteds.isEmpty()
+          ? ImmutableList.<TreeDifference>of()
+          : ImmutableList.of(diffCompilationUnits(
+              expecteds.get(0), actuals.get(0), maxDifferences, memberMatching));
+    }
+    List<Future<TreeDifference>> futures = new ArrayList<Future<TreeDifference>>();
+    for (int i = 0; i < expecteds.size(); i++) {
+      final CompilationUnitTree expected = expecteds.get(i);
+      final CompilationUnitTree actual = actuals.get(i);
+      futures.add(DiffPool.INSTANCE.submit(new Callable<TreeDifference>() {
+        @Override public TreeDifference call() {
+          return diffCompilationUnits(expected, actual, maxDifferences, memberMatching);
+        }
+      }));
+    }
+    ImmutableList.Builder<TreeDifference> differences = ImmutableList.builder();
+    for (Future<TreeDifference> future : futures) {
+      try {
+        differences.add(Uninterruptibles.getUninterruptibly(future));
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+    }
+    return differences.build();
+  }
+
+  /** Holds the pool that compilation units are diffed on, created when first needed. */
+  private static final class DiffPool {
+    static final ForkJoinPool INSTANCE = new ForkJoinPool();
+  }
+
+  private static TreeDifference diffCompilationUnits(@Nullable CompilationUnitTree expected,
+      @Nullable CompilationUnitTree actual, TreeDifference.Builder diffBuilder) {
+    return diffCompilationUnits(expected, actual, diffBuilder, MemberMatching.POSITIONAL);
+  }
+
+  private static TreeDifference diffCompilationUnits(@Nullable CompilationUnitTree expected,
+      @Nullable CompilationUnitTree actual, TreeDifference.Builder diffBuilder,
+      MemberMatching memberMatching) {
+    if (expected == null || actual == null) {
+      new DiffVisitor(diffBuilder).scan(expected, actual);
+      return diffBuilder.build();
+    }
+    // expected trees are usually shared golden files, so only their fingerprints are kept
+    Map<Tree, HashCode> expectedFingerprints = TreeFingerprinter.fingerprintsOf(expected);
+    Map<Tree, HashCode> actualFingerprints = TreeFingerprinter.computeFingerprints(actual);
+    DiffVisitor diffVisitor = new DiffVisitor(
+        diffBuilder, expectedFingerprints, actualFingerprints, memberMatching);
     diffVisitor.scan(expected, actual);
     return diffBuilder.build();
   }
@@ -129,15 +252,27 @@ final class TreeDiffer {
    * {@link TreeDifference.Builder}.
    */
   static final class DiffVisitor extends SimpleTreeVisitor<Void, Tree> {
-    private TreePath expectedPath;
-    private TreePath actualPath;
+    /**
+     * Lists whose differing parts would need a larger alignment table than this are compared by
+     * position instead.
+     */
+    private static final long MAX_ALIGNMENT_CELLS = 1 << 22;
+
+    private final PathStack expectedPath;
+    private final PathStack actualPath;
 
     private final TreeDifference.Builder diffBuilder;
+    private final Map<Tree, HashCode> expectedFingerprints;
+    private final Map<Tree, HashCode> actualFingerprints;
+    private final MemberMatching memberMatching;
 
     public DiffVisitor(TreeDifference.Builder diffBuilder) {
       this.diffBuilder = diffBuilder;
-      expectedPath = null;
-      actualPath = null;
+      expectedPath = new PathStack(null);
+      actualPath = new PathStack(null);
+      expectedFingerprints = ImmutableMap.of();
+      actualFingerprints = ImmutableMap.of();
+      memberMatching = MemberMatching.POSITIONAL;
     }
 
     /**
@@ -147,8 +282,27 @@ final class TreeDiffer {
     public DiffVisitor(TreeDifference.Builder diffBuilder,
         TreePath pathToExpected, TreePath pathToActual) {
       this.diffBuilder = diffBuilder;
-      expectedPath = pathToExpected;
-      actualPath = pathToActual;
+      expectedPath = new PathStack(pathToExpected);
+      actualPath = new PathStack(pathToActual);
+      expectedFingerprints = ImmutableMap.of();
+      actualFingerprints = ImmutableMap.of();
+      memberMatching = MemberMatching.POSITIONAL;
+    }
+
+    /**
+     * Constructs a DiffVisitor that skips every pair of subtrees whose
+     * {@linkplain TreeFingerprinter fingerprints} are equal, and pairs up members, statements and
+     * imports as {@code memberMatching} says.
+     */
+    public DiffVisitor(TreeDifference.Builder diffBuilder,
+        Map<Tree, HashCode> expectedFingerprints, Map<Tree, HashCode> actualFingerprints,
+        MemberMatching memberMatching) {
+      this.diffBuilder = diffBuilder;
+      expectedPath = new PathStack(null);
+      actualPath = new PathStack(null);
+      this.expectedFingerprints = expectedFingerprints;
+      this.actualFingerprints = actualFingerprints;
+      this.memberMatching = memberMatching;
     }
 
     /**
@@ -167,40 +321,49 @@ final class TreeDiffer {
      */
     private void checkForDiff(boolean p, String message, Object... formatArgs) {
       if (!p) {
-        diffBuilder.addDifferingNodes(expectedPath, actualPath, String.format(message, formatArgs));
+        diffBuilder.addDifferingNodes(expectedPath.toTreePath(), actualPath.toTreePath(),
+            String.format(message, formatArgs));
       }
     }
 
     private TreePath actualPathPlus(Tree actual) {
       checkNotNull(actual, "Tried to push null actual tree onto path.");
-      return new TreePath(actualPath, actual);
+      return new TreePath(actualPath.toTreePath(), actual);
     }
 
     private TreePath expectedPathPlus(Tree expected) {
       checkNotNull(expected, "Tried to push null expected tree onto path.");
-      return new TreePath(expectedPath, expected);
+      return new TreePath(expectedPath.toTreePath(), expected);
     }
 
     /**
      * Pushes the {@code expected} and {@code actual} {@link Tree}s onto their respective
-     * {@link TreePath}s and recurses with {@code expected.accept(this, actual)}, popping the
+     * {@link PathStack}s and recurses with {@code expected.accept(this, actual)}, popping the
      * stack when the call completes.
      *
-     * <p>This should be the ONLY place where either {@link TreePath} is mutated.
+     * <p>This should be the ONLY place where either {@link PathStack} is mutated.
      */
     private Void pushPathAndAccept(Tree expected, Tree actual) {
-      TreePath prevExpectedPath = expectedPath;
-      TreePath prevActualPath = actualPath;
-      expectedPath = expectedPathPlus(expected);
-      actualPath = actualPathPlus(actual);
+      if (diffBuilder.isTruncated() || fingerprintsMatch(expected, actual)) {
+        return null;
+      }
+      expectedPath.push(checkNotNull(expected, "Tried to push null expected tree onto path."));
+      actualPath.push(checkNotNull(actual, "Tried to push null actual tree onto path."));
       try {
         return expected.accept(this, actual);
       } finally {
-        expectedPath = prevExpectedPath;
-        actualPath = prevActualPath;
+        expectedPath.pop();
+        actualPath.pop();
       }
     }
     
+    /** Returns {@code true} if both subtrees have fingerprints, and they are equal. */
+    private boolean fingerprintsMatch(Tree expected, Tree actual) {
+      HashCode expectedFingerprint = expectedFingerprints.get(expected);
+      return expectedFingerprint != null
+          && expectedFingerprint.equals(actualFingerprints.get(actual));
+    }
+
     private boolean namesEqual(@Nullable Name expected, @Nullable Name actual) {
       return (expected == null)
           ? actual == null
@@ -239,6 +402,146 @@ final class TreeDiffer {
       return null;
     }
 
+    /**
+     * Compares the members, statements or imports given as {@link #memberMatching} says. Unlike
+     * {@link #parallelScan}, every element left without a counterpart is reported.
+     */
+    private Void memberScan(List<? extends Tree> expecteds, List<? extends Tree> actuals) {
+      if (memberMatching != MemberMatching.ALIGNED) {
+        return parallelScan(expecteds, actuals);
+      }
+      // equal leading and trailing elements need no alignment
+      int start = 0;
+      int expectedEnd = expecteds.size();
+      int actualEnd = actuals.size();
+      while (start < expectedEnd && start < actualEnd
+          && fingerprintsMatch(expecteds.get(start), actuals.get(start))) {
+        start++;
+      }
+      while (expectedEnd > start && actualEnd > start
+          && fingerprintsMatch(expecteds.get(expectedEnd - 1), actuals.get(actualEnd - 1))) {
+        expectedEnd--;
+        actualEnd--;
+      }
+      List<? extends Tree> expectedRest = expecteds.subList(start, expectedEnd);
+      List<? extends Tree> actualRest = actuals.subList(start, actualEnd);
+      if ((long) expectedRest.size() * actualRest.size() > MAX_ALIGNMENT_CELLS) {
+        return gapScan(expectedRest, actualRest);
+      }
+
+      // common[i][j] is the length of the longest common subsequence of expectedRest from i and
+      // actualRest from j
+      int[][] common = new int[expectedRest.size() + 1][actualRest.size() + 1];
+      for (int i = expectedRest.size() - 1; i >= 0; i--) {
+        for (int j = actualRest.size() - 1; j >= 0; j--) {
+          common[i][j] = fingerprintsMatch(expectedRest.get(i), actualRest.get(j))
+              ? common[i + 1][j + 1] + 1
+              : Math.max(common[i + 1][j], common[i][j + 1]);
+        }
+      }
+      int i = 0;
+      int j = 0;
+      int expectedGapStart = 0;
+      int actualGapStart = 0;
+      while (i < expectedRest.size() && j < actualRest.size()) {
+        if (fingerprintsMatch(expectedRest.get(i), actualRest.get(j))) {
+          gapScan(expectedRest.subList(expectedGapStart, i), actualRest.subList(actualGapStart, j));
+          expectedGapStart = ++i;
+          actualGapStart = ++j;
+        } else if (common[i + 1][j] >= common[i][j + 1]) {
+          i++;
+        } else {
+          j++;
+        }
+      }
+      return gapScan(expectedRest.subList(expectedGapStart, expectedRest.size()),
+          actualRest.subList(actualGapStart, actualRest.size()));
+    }
+
+    /**
+     * Compares the elements between two aligned ones by position, and reports each element left
+     * over as extra.
+     */
+    private Void gapScan(List<? extends Tree> expecteds, List<? extends Tree> actuals) {
+      int paired = Math.min(expecteds.size(), actuals.size());
+      for (int i = 0; i < paired; i++) {
+        pushPathAndAccept(expecteds.get(i), actuals.get(i));
+      }
+      for (Tree expected : expecteds.subList(paired, expecteds.size())) {
+        diffBuilder.addExtraExpectedNode(expectedPathPlus(expected));
+      }
+      for (Tree actual : actuals.subList(paired, actuals.size())) {
+        diffBuilder.addExtraActualNode(actualPathPlus(actual));
+      }
+      return null;
+    }
+
+    /**
+     * Compares each expected class member with the actual member of the same
+     * {@linkplain #signatureKeys signature}, and reports every member left without one as extra.
+     */
+    private Void unorderedMemberScan(List<? extends Tree> expecteds,
+        List<? extends Tree> actuals) {
+      Map<String, Tree> actualsBySignature = new LinkedHashMap<String, Tree>();
+      Iterator<String> actualKeys = signatureKeys(actuals).iterator();
+      for (Tree actual : actuals) {
+        actualsBySignature.put(actualKeys.next(), actual);
+      }
+      Iterator<String> expectedKeys = signatureKeys(expecteds).iterator();
+      for (Tree expected : expecteds) {
+        Tree actual = actualsBySignature.remove(expectedKeys.next());
+        if (actual == null) {
+          diffBuilder.addExtraExpectedNode(expectedPathPlus(expected));
+        } else {
+          pushPathAndAccept(expected, actual);
+        }
+      }
+      for (Tree actual : actualsBySignature.values()) {
+        diffBuilder.addExtraActualNode(actualPathPlus(actual));
+      }
+      return null;
+    }
+
+    /**
+     * Returns a key for each class member that identifies it among its siblings regardless of
+     * where it is declared: the name and parameter types of methods, and the names of fields and
+     * nested classes. Members that share a key, such as initializer blocks, are told apart by the
+     * order in which they are declared.
+     */
+    private static List<String> signatureKeys(List<? extends Tree> members) {
+      List<String> keys = new ArrayList<String>(members.size());
+      Map<String, Integer> occurrences = new HashMap<String, Integer>();
+      for (Tree member : members) {
+        String key = signatureKey(member);
+        Integer previous = occurrences.get(key);
+        int occurrence = (previous == null) ? 0 : previous + 1;
+        occurrences.put(key, occurrence);
+        keys.add(key + "#" + occurrence);
+      }
+      return keys;
+    }
+
+    private static String signatureKey(Tree member) {
+      switch (member.getKind()) {
+        case METHOD:
+          MethodTree method = (MethodTree) member;
+          StringBuilder key = new StringBuilder("METHOD ").append(method.getName()).append('(');
+          for (VariableTree parameter : method.getParameters()) {
+            key.append(parameter.getType()).append(',');
+          }
+          return key.append(')').toString();
+        case VARIABLE:
+          return "VARIABLE " + ((VariableTree) member).getName();
+        case CLASS:
+        case INTERFACE:
+        case ENUM:
+        case ANNOTATION_TYPE:
+          return "CLASS " + ((ClassTree) member).getSimpleName();
+        default:
+          return member.getKind().toString();
+      }
+    }
+
     private boolean isEmptyOrNull(Iterable<?> iterable) {
       return iterable == null || !iterable.iterator().hasNext();
     }
@@ -334,7 +637,7 @@ final class TreeDiffer {
           "Expected block to be <%s> but was <%s>.", expected.isStatic() ? "static" : "non-static",
           other.get().isStatic() ? "static" : "non-static");
 
-      parallelScan(expected.getStatements(), other.get().getStatements());
+      memberScan(expected.getStatements(), other.get().getStatements());
       return null;
     }
 
@@ -394,7 +697,11 @@ final class TreeDiffer {
       parallelScan(expected.getTypeParameters(), other.get().getTypeParameters());
       scan(expected.getExtendsClause(), other.get().getExtendsClause());
       parallelScan(expected.getImplementsClause(), other.get().getImplementsClause());
-      parallelScan(expected.getMembers(), other.get().getMembers());
+      if (memberMatching == MemberMatching.UNORDERED) {
+        unorderedMemberScan(expected.getMembers(), other.get().getMembers());
+      } else {
+        memberScan(expected.getMembers(), other.get().getMembers());
+      }
       return null;
     }
 
@@ -745,7 +1052,7 @@ final class TreeDiffer {
 
       parallelScan(expected.getPackageAnnotations(), other.get().getPackageAnnotations());
       scan(expected.getPackageName(), other.get().getPackageName());
-      parallelScan(expected.getImports(), other.get().getImports());
+      memberScan(expected.getImports(), other.get().getImports());
       parallelScan(expected.getTypeDecls(), other.get().getTypeDecls());
       return null;
     }
@@ -917,4 +1224,57 @@ final class TreeDiffer {
       }
     }
   }
+
+  /**
+   * The path from the root to the node a {@link DiffVisitor} is visiting, kept as a reusable
+   * array-backed stack. {@link TreePath}s are only created when a difference is recorded, and the
+   * path of each prefix of the stack is created at most once while that prefix is unchanged, so
+   * visiting equal nodes allocates nothing.
+   */
+  private static final class PathStack {
+    @Nullable private final TreePath base;
+    private Tree[] trees = new Tree[32];
+    /** {@code paths[i]} is the path ending at {@code trees[i]}, or {@code null} if not created. */
+    private TreePath[] paths = new TreePath[32];
+    private int size = 0;
+
+    /** Creates an empty stack whose paths all start with {@code base}. */
+    PathStack(@Nullable TreePath base) {
+      this.base = base;
+    }
+
+    void push(Tree tree) {
+      if (size == trees.length) {
+        trees = Arrays.copyOf(trees, size * 2);
+        paths = Arrays.copyOf(paths, size * 2);
+      }
+      trees[size] = tree;
+      paths[size] = null;
+      size++;
+    }
+
+    void pop() {
+      size--;
+      trees[size] = null;
+      paths[size] = null;
+    }
+
+    /** Returns the path to the top of the stack, or the base path if the stack is empty. */
+    @Nullable
+    TreePath toTreePath() {
+      if (size == 0) {
+        return base;
+      }
+      int materialized = size;
+      while (materialized > 0 && paths[materialized - 1] == null) {
+        materialized--;
+      }
+      TreePath path = (materialized == 0) ? base : paths[materialized - 1];
+      for (int i = materialized; i < size; i++) {
+        path = new TreePath(path, trees[i]);
+        paths[i] = path;
+      }
+      return path;
+    }
+  }
 }
@@ -15,9 +15,10 @@
  */
 package com.abubusoft.testing.compile;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static javax.tools.Diagnostic.NOPOS;
 
-import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 
 import com.sun.source.tree.Tree;
@@ -32,24 +33,39 @@ import javax.annotation.Nullable;
  */
 final class TreeDifference {
   private static final String NO_LINE = "[unavailable]";
+  /** The number of lines of the contents of an extra node that reports include. */
+  static final int MAX_NODE_CONTENTS_LINES = 20;
 
   private final ImmutableList<OneWayDiff> extraExpectedNodes;
   private final ImmutableList<OneWayDiff> extraActualNodes;
   private final ImmutableList<TwoWayDiff> differingNodes;
+  private final boolean truncated;
 
   /** Constructs an empty {@code TreeDifference}. */
   TreeDifference() {
     this.extraExpectedNodes = ImmutableList.<OneWayDiff>of();
     this.extraActualNodes = ImmutableList.<OneWayDiff>of();
     this.differingNodes = ImmutableList.<TwoWayDiff>of();
+    this.truncated = false;
   }
 
   /** Constructs a {@code TreeDifference} that includes the given diffs. */
   TreeDifference(ImmutableList<OneWayDiff> extraExpectedNodes,
       ImmutableList<OneWayDiff> extraActualNodes, ImmutableList<TwoWayDiff> differingNodes) {
+    this(extraExpectedNodes, extraActualNodes, differingNodes, false);
+  }
+
+  /**
+   * Constructs a {@code TreeDifference} that includes the given diffs, which are only the first
+   * of the differences between the trees if {@code truncated} is {@code true}.
+   */
+  TreeDifference(ImmutableList<OneWayDiff> extraExpectedNodes,
+      ImmutableList<OneWayDiff> extraActualNodes, ImmutableList<TwoWayDiff> differingNodes,
+      boolean truncated) {
     this.extraExpectedNodes = extraExpectedNodes;
     this.extraActualNodes = extraActualNodes;
     this.differingNodes = differingNodes;
+    this.truncated = truncated;
   }
 
   /** Returns {@code true} iff there are no diffs. */
@@ -78,6 +94,14 @@ final class TreeDifference {
     return differingNodes;
   }
 
+  /**
+   * Returns {@code true} if the trees have more differences than this {@code TreeDifference}
+   * describes, because they had more than the {@linkplain Builder#Builder(int) limit}.
+   */
+  boolean isTruncated() {
+    return truncated;
+  }
+
   /**
    * Returns a {@code String} reporting all diffs known to this {@code TreeDifference}. No context
    * will be provided in the report.
@@ -90,78 +114,111 @@ final class TreeDifference {
    * Returns a {@code String} reporting all diffs known to this {@code TreeDifference}. If an
    * expected or actual {@code TreeContext} is provided, then it will be used to contextualize
    * corresponding entries in the report.
+   *
+   * <p>The contents of extra nodes are reported as their text in the source file if a context is
+   * provided, or pretty-printed otherwise, and only their first
+   * {@value #MAX_NODE_CONTENTS_LINES} lines are included.
    */
   String getDiffReport(@Nullable TreeContext expectedContext, @Nullable TreeContext actualContext) {
-    ImmutableList.Builder<String> reportLines = new ImmutableList.Builder<String>();
+    StringBuilder report = new StringBuilder();
     if (!extraExpectedNodes.isEmpty()) {
-      reportLines.add(String.format("Found %s unmatched nodes in the expected tree. %n",
+      appendLine(report, String.format("Found %s unmatched nodes in the expected tree. %n",
               extraExpectedNodes.size()));
       for (OneWayDiff diff : extraExpectedNodes) {
-        reportLines.add(
-            createMessage(diff.getDetails(), diff.getNodePath(), expectedContext, true));
+        appendMessage(report, diff.getDetails(), diff.getNodePath(), expectedContext, true);
       }
     }
     if (!extraActualNodes.isEmpty()) {
-      reportLines.add(String.format("Found %s unmatched nodes in the actual tree. %n",
+      appendLine(report, String.format("Found %s unmatched nodes in the actual tree. %n",
               extraActualNodes.size()));
       for (OneWayDiff diff : extraActualNodes) {
-        reportLines.add(
-            createMessage(diff.getDetails(), diff.getNodePath(), actualContext, false));
+        appendMessage(report, diff.getDetails(), diff.getNodePath(), actualContext, false);
       }
     }
     if (!differingNodes.isEmpty()) {
-      reportLines.add(String.format("Found %s nodes that differed in expected and actual trees. %n",
-              differingNodes.size()));
+      appendLine(report, String.format(
+          "Found %s nodes that differed in expected and actual trees. %n", differingNodes.size()));
       for (TwoWayDiff diff : differingNodes) {
-        reportLines.add(createMessage(diff.getDetails(), diff.getExpectedNodePath(),
-                expectedContext, diff.getActualNodePath(), actualContext));
+        appendMessage(report, diff.getDetails(), diff.getExpectedNodePath(), expectedContext,
+            diff.getActualNodePath(), actualContext);
       }
     }
-    return Joiner.on('\n').join(reportLines.build());
+    if (truncated) {
+      appendLine(report, String.format(
+          "Stopped after the first %s differences; there are more. %n",
+          extraExpectedNodes.size() + extraActualNodes.size() + differingNodes.size()));
+    }
+    return report.toString();
   }
 
-  /** Creates a log entry about an extra node on the expected or actual tree. */
-  private String createMessage(String details, TreePath nodePath, @Nullable TreeContext treeContext,
-      boolean onExpected) {
-    long startLine = (treeContext == null)
-        ? NOPOS : treeContext.getNodeStartLine(nodePath.getLeaf());
-    String contextStr = String.format("Line %s %s",
-        (startLine == NOPOS) ? NO_LINE : startLine,
-        Breadcrumbs.describeTreePath(nodePath));
-    return Joiner.on('\n').join(
-        String.format("> Extra node in %s tree.", onExpected ? "expected" : "actual"),
-        String.format("  %s", contextStr),
-        String.format("  Node contents: <%s>.", nodeContents(nodePath.getLeaf())),
-        String.format("  %s", details),
-        "");
+  /** Appends {@code line} to {@code report}, separated by a newline from what came before. */
+  private static StringBuilder appendLine(StringBuilder report, CharSequence line) {
+    if (report.length() > 0) {
+      report.append('\n');
+    }
+    return report.append(line);
   }
 
-  /** Creates a log entry about two differing nodes. */
-  private String createMessage(String details, TreePath expectedNodePath,
-      @Nullable TreeContext expectedTreeContext, TreePath actualNodePath,
-      @Nullable TreeContext actualTreeContext) {
-
-    long expectedTreeStartLine = (expectedTreeContext == null)
-        ? NOPOS : expectedTreeContext.getNodeStartLine(expectedNodePath.getLeaf());
-    String expectedContextStr = String.format("Line %s %s",
-        (expectedTreeStartLine == NOPOS) ? NO_LINE : expectedTreeStartLine,
-        Breadcrumbs.describeTreePath(expectedNodePath));
-    long actualTreeStartLine = (actualTreeContext == null)
-        ? NOPOS : actualTreeContext.getNodeStartLine(actualNodePath.getLeaf());
-    String actualContextStr = String.format("Line %s %s",
-        (actualTreeStartLine == NOPOS) ? NO_LINE : actualTreeStartLine,
-        Breadcrumbs.describeTreePath(actualNodePath));
-    return Joiner.on('\n').join(
-        "> Difference in expected tree and actual tree.",
-        String.format("  Expected node: %s", expectedContextStr),
-        String.format("  Actual node: %s", actualContextStr),
-        String.format("  %s", details),
-        "");
+  /** Appends a log entry about an extra node on the expected or actual tree. */
+  private static void appendMessage(StringBuilder report, String details, TreePath nodePath,
+      @Nullable TreeContext treeContext, boolean onExpected) {
+    appendLine(report, "> Extra node in ").append(onExpected ? "expected" : "actual")
+        .append(" tree.\n  ");
+    appendContext(report, nodePath, treeContext);
+    report.append("\n  Node contents: <");
+    appendNodeContents(report, nodePath, treeContext);
+    report.append(">.\n  ").append(details).append('\n');
   }
 
-  /** Returns a specially formatted String containing the contents of the given node. */
-  private String nodeContents(Tree node) {
-    return node.toString().replaceFirst("\n", "");  // nodes begin with an ugly newline.
+  /** Appends a log entry about two differing nodes. */
+  private static void appendMessage(StringBuilder report, String details,
+      TreePath expectedNodePath, @Nullable TreeContext expectedTreeContext,
+      TreePath actualNodePath, @Nullable TreeContext actualTreeContext) {
+    appendLine(report, "> Difference in expected tree and actual tree.\n  Expected node: ");
+    appendContext(report, expectedNodePath, expectedTreeContext);
+    report.append("\n  Actual node: ");
+    appendContext(report, actualNodePath, actualTreeContext);
+    report.append("\n  ").append(details).append('\n');
+  }
+
+  /** Appends the line and breadcrumbs of the leaf of {@code nodePath}. */
+  private static void appendContext(StringBuilder report, TreePath nodePath,
+      @Nullable TreeContext treeContext) {
+    long startLine = (treeContext == null) ? NOPOS : treeContext.getNodeStartLine(nodePath);
+    report.append("Line ").append((startLine == NOPOS) ? NO_LINE : startLine).append(' ')
+        .append(Breadcrumbs.describeTreePath(nodePath));
+  }
+
+  /**
+   * Appends at most {@value #MAX_NODE_CONTENTS_LINES} lines of the contents of the leaf of
+   * {@code nodePath}, followed by the number of lines left out.
+   */
+  private static void appendNodeContents(StringBuilder report, TreePath nodePath,
+      @Nullable TreeContext treeContext) {
+    Optional<CharSequence> source = (treeContext == null)
+        ? Optional.<CharSequence>absent() : treeContext.getNodeSource(nodePath);
+    CharSequence contents = source.isPresent()
+        ? source.get()
+        : nodePath.getLeaf().toString().replaceFirst("\n", ""); // nodes begin with an ugly newline.
+    int lines = 0;
+    int end = 0;
+    while (end < contents.length() && lines < MAX_NODE_CONTENTS_LINES) {
+      if (contents.charAt(end++) == '\n') {
+        lines++;
+      }
+    }
+    if (end == contents.length()) {
+      report.append(contents);
+      return;
+    }
+    int omittedLines = (contents.charAt(contents.length() - 1) == '\n') ? 0 : 1;
+    for (int i = end; i < contents.length(); i++) {
+      if (contents.charAt(i) == '\n') {
+        omittedLines++;
+      }
+    }
+    report.append(contents, 0, end)
+        .append("[").append(omittedLines).append(" more lines]");
   }
 
   /**
@@ -172,11 +229,43 @@ final class TreeDifference {
     private final ImmutableList.Builder<OneWayDiff> extraExpectedNodesBuilder;
     private final ImmutableList.Builder<OneWayDiff> extraActualNodesBuilder;
     private final ImmutableList.Builder<TwoWayDiff> differingNodesBuilder;
+    private final int maxDifferences;
+    private int differenceCount = 0;
+    private boolean truncated = false;
 
+    /** Creates a builder that keeps every difference. */
     Builder() {
+      this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a builder that keeps the first {@code maxDifferences} differences, and only records
+     * that there were more after that.
+     */
+    Builder(int maxDifferences) {
+      checkArgument(maxDifferences > 0, "maxDifferences must be positive: %s", maxDifferences);
       this.extraExpectedNodesBuilder = new ImmutableList.Builder<OneWayDiff>();
       this.extraActualNodesBuilder = new ImmutableList.Builder<OneWayDiff>();
       this.differingNodesBuilder = new ImmutableList.Builder<TwoWayDiff>();
+      this.maxDifferences = maxDifferences;
+    }
+
+    /**
+     * Returns {@code true} once a difference beyond the limit was logged, after which looking for
+     * more differences is pointless.
+     */
+    boolean isTruncated() {
+      return truncated;
+    }
+
+    /** Counts a new difference, returning {@code false} if it is beyond the limit. */
+    private boolean admit() {
+      if (differenceCount == maxDifferences) {
+        truncated = true;
+        return false;
+      }
+      differenceCount++;
+      return true;
     }
 
     /** Logs an extra node on the expected tree in the {@code TreeDifference} being built. */
@@ -186,13 +275,17 @@ final class TreeDifference {
 
     /** Logs an extra node on the expected tree in the {@code TreeDifference} being built. */
     Builder addExtraExpectedNode(TreePath extraNode, String message) {
-      extraExpectedNodesBuilder.add(new OneWayDiff(extraNode, message));
+      if (admit()) {
+        extraExpectedNodesBuilder.add(new OneWayDiff(extraNode, message));
+      }
       return this;
     }
 
     /** Logs an extra node on the actual tree in the {@code TreeDifference} being built. */
     Builder addExtraActualNode(TreePath extraNode, String message) {
-      extraActualNodesBuilder.add(new OneWayDiff(extraNode, message));
+      if (admit()) {
+        extraActualNodesBuilder.add(new OneWayDiff(extraNode, message));
+      }
       return this;
     }
 
@@ -214,14 +307,16 @@ final class TreeDifference {
      * built.
      */
     Builder addDifferingNodes(TreePath expectedNode, TreePath actualNode, String message) {
-      differingNodesBuilder.add(new TwoWayDiff(expectedNode, actualNode, message));
+      if (admit()) {
+        differingNodesBuilder.add(new TwoWayDiff(expectedNode, actualNode, message));
+      }
       return this;
     }
 
     /** Builds and returns the {@code TreeDifference}. */
     TreeDifference build() {
       return new TreeDifference(extraExpectedNodesBuilder.build(),
-          extraActualNodesBuilder.build(), differingNodesBuilder.build());
+          extraActualNodesBuilder.build(), differingNodesBuilder.build(), truncated);
     }
   }
 
@@ -0,0 +1,556 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Ordering;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.sun.source.tree.AnnotationTree;
+import com.sun.source.tree.ArrayAccessTree;
+import com.sun.source.tree.ArrayTypeTree;
+import com.sun.source.tree.AssertTree;
+import com.sun.source.tree.AssignmentTree;
+import com.sun.source.tree.BinaryTree;
+import com.sun.source.tree.BlockTree;
+import com.sun.source.tree.BreakTree;
+import com.sun.source.tree.CaseTree;
+import com.sun.source.tree.CatchTree;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.CompoundAssignmentTree;
+import com.sun.source.tree.ConditionalExpressionTree;
+import com.sun.source.tree.ContinueTree;
+import com.sun.source.tree.DoWhileLoopTree;
+import com.sun.source.tree.EmptyStatementTree;
+import com.sun.source.tree.EnhancedForLoopTree;
+import com.sun.source.tree.ErroneousTree;
+import com.sun.source.tree.ExpressionStatementTree;
+import com.sun.source.tree.ForLoopTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.IfTree;
+import com.sun.source.tree.ImportTree;
+import com.sun.source.tree.InstanceOfTree;
+import com.sun.source.tree.LabeledStatementTree;
+import com.sun.source.tree.LiteralTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.ModifiersTree;
+import com.sun.source.tree.NewArrayTree;
+import com.sun.source.tree.NewClassTree;
+import com.sun.source.tree.ParameterizedTypeTree;
+import com.sun.source.tree.ParenthesizedTree;
+import com.sun.source.tree.PrimitiveTypeTree;
+import com.sun.source.tree.ReturnTree;
+import com.sun.source.tree.SwitchTree;
+import com.sun.source.tree.SynchronizedTree;
+import com.sun.source.tree.ThrowTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.TryTree;
+import com.sun.source.tree.TypeCastTree;
+import com.sun.source.tree.TypeParameterTree;
+import com.sun.source.tree.UnaryTree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.tree.WhileLoopTree;
+import com.sun.source.tree.WildcardTree;
+import com.sun.source.util.SimpleTreeVisitor;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.lang.model.element.Modifier;
+
+/**
+ * Computes structural fingerprints of {@link Tree}s, so that {@link TreeDiffer} can tell that two
+ * subtrees are equal without comparing them node by node.
+ *
+ * <p>The fingerprint of a node is a hash of its kind, of the attributes that
+ * {@link TreeDiffer.DiffVisitor} compares for that kind (names, literal values, modifiers, ...)
+ * and of the fingerprints of the children it scans, in order. Two subtrees with equal fingerprints
+ * therefore have no differences, barring a collision of the 128-bit hash.
+ *
+ * <p>Nodes of a kind that {@code DiffVisitor} has no specific comparison for get no fingerprint,
+ * and neither do their ancestors, so that such subtrees are always compared the way they were
+ * before.
+ */
+@SuppressWarnings("restriction") // Sun APIs usage intended
+final class TreeFingerprinter {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  /** As many compilation units as {@link ParseCache} keeps parse results. */
+  private static final int MAX_CACHED_COMPILATION_UNITS = 512;
+
+  /**
+   * Fingerprints of compilation units that are still referenced. Expected sources are shared by
+   * many tests through {@link ParseCache}, so each of them is only fingerprinted once.
+   *
+   * <p>The fingerprints of a compilation unit leave out the compilation unit itself: a value that
+   * referenced its own weak key would keep the entry from ever being cleared.
+   */
+  private static final LoadingCache<CompilationUnitTree, Map<Tree, HashCode>>
+      compilationUnitFingerprints = CacheBuilder.newBuilder()
+          .maximumSize(MAX_CACHED_COMPILATION_UNITS)
+          .weakKeys()
+          .softValues()
+          .build(new CacheLoader<CompilationUnitTree, Map<Tree, HashCode>>() {
+            @Override public Map<Tree, HashCode> load(CompilationUnitTree compilationUnit) {
+              return computeFingerprints(compilationUnit, false);
+            }
+          });
+
+  private TreeFingerprinter() {}
+
+  /**
+   * Returns the fingerprints of every node below {@code compilationUnit} that has one, remembering
+   * them for as long as the compilation unit is referenced (and the cache has room for them). The
+   * compilation unit itself has no fingerprint in the result.
+   */
+  static Map<Tree, HashCode> fingerprintsOf(CompilationUnitTree compilationUnit) {
+    return compilationUnitFingerprints.getUnchecked(compilationUnit);
+  }
+
+  /** Returns the fingerprints of every node in {@code root} that has one, without caching them. */
+  static Map<Tree, HashCode> computeFingerprints(Tree root) {
+    return computeFingerprints(root, true);
+  }
+
+  private static Map<Tree, HashCode> computeFingerprints(Tree root, boolean includeRoot) {
+    FingerprintVisitor visitor = new FingerprintVisitor();
+    root.accept(visitor, null);
+    if (!includeRoot) {
+      visitor.fingerprints.remove(root);
+    }
+    return Collections.unmodifiableMap(visitor.fingerprints);
+  }
+
+  /** Accumulates the fingerprint of one node. */
+  private static final class NodeHasher {
+    private final FingerprintVisitor visitor;
+    private final Hasher hasher;
+    private boolean hashable = true;
+
+    NodeHasher(FingerprintVisitor visitor, Tree node) {
+      this.visitor = visitor;
+      this.hasher = HASH_FUNCTION.newHasher().putInt(node.getKind().ordinal());
+    }
+
+    NodeHasher name(@Nullable CharSequence name) {
+      if (name == null) {
+        hasher.putInt(-1);
+      } else {
+        String string = name.toString();
+        hasher.putInt(string.length()).putString(string, UTF_8);
+      }
+      return this;
+    }
+
+    NodeHasher flag(boolean flag) {
+      hasher.putBoolean(flag);
+      return this;
+    }
+
+    NodeHasher ordinal(Enum<?> value) {
+      hasher.putInt(value.ordinal());
+      return this;
+    }
+
+    /** Literal values are compared with {@code equals}, so both type and value are hashed. */
+    NodeHasher value(@Nullable Object value) {
+      if (value == null) {
+        return name(null);
+      }
+      return name(value.getClass().getName()).name(value.toString());
+    }
+
+    NodeHasher modifiers(Iterable<Modifier> modifiers) {
+      for (Modifier modifier : Ordering.natural().sortedCopy(modifiers)) {
+        hasher.putInt(modifier.ordinal());
+      }
+      hasher.putInt(-1);
+      return this;
+    }
+
+    /** Hashes a child that is scanned on its own; a missing child differs from any other. */
+    NodeHasher child(@Nullable Tree child) {
+      if (child == null) {
+        hasher.putBoolean(false);
+      } else {
+        hasher.putBoolean(true);
+        putFingerprint(child);
+      }
+      return this;
+    }
+
+    /** Hashes children that are scanned in parallel; a missing list is an empty one. */
+    NodeHasher children(@Nullable Iterable<? extends Tree> children) {
+      if (children != null) {
+        for (Tree child : children) {
+          hasher.putBoolean(true);
+          putFingerprint(child);
+        }
+      }
+      hasher.putBoolean(false);
+      return this;
+    }
+
+    private void putFingerprint(Tree child) {
+      // children are always visited, so that their fingerprints are known even if ours isn't
+      HashCode fingerprint = child.accept(visitor, null);
+      if (fingerprint == null) {
+        hashable = false;
+      } else {
+        hasher.putBytes(fingerprint.asBytes());
+      }
+    }
+
+    @Nullable
+    HashCode build(Tree node) {
+      if (!hashable) {
+        return null;
+      }
+      HashCode fingerprint = hasher.hash();
+      visitor.fingerprints.put(node, fingerprint);
+      return fingerprint;
+    }
+  }
+
+  /**
+   * Returns the fingerprint of each node it visits, or {@code null} if the node has none. Every
+   * {@code visit} method mirrors the corresponding method of {@link TreeDiffer.DiffVisitor}.
+   */
+  private static final class FingerprintVisitor extends SimpleTreeVisitor<HashCode, Void> {
+    private final Map<Tree, HashCode> fingerprints = new IdentityHashMap<Tree, HashCode>();
+
+    private NodeHasher hasher(Tree node) {
+      return new NodeHasher(this, node);
+    }
+
+    @Override
+    public HashCode visitAnnotation(AnnotationTree node, Void p) {
+      return hasher(node)
+          .child(node.getAnnotationType())
+          .children(node.getArguments())
+          .build(node);
+    }
+
+    @Override
+    public HashCode visitMethodInvocation(MethodInvocationTree node, Void p) {
+      return hasher(node)
+          .children(node.getTypeArguments())
+          .child(node.getMethodSelect())
+          .children(node.getArguments())
+          .build(node);
+    }
+
+    @Override
+    public HashCode visitAssert(AssertTree node, Void p) {
+      return hasher(node).child(node.getCondition()).child(node.getDetail()).build(node);
+    }
+
+    @Override
+    public HashCode visitAssignment(AssignmentTree node, Void p) {
+      return hasher(node).child(node.getVariable()).child(node.getExpression()).build(node);
+    }
+
+    @Override
+    public HashCode visitCompoundAssignment(CompoundAssignmentTree node, Void p) {
+      return hasher(node).child(node.getVariable()).child(node.getExpression()).build(node);
+    }
+
+    @Override
+    public HashCode visitBinary(BinaryTree node, Void p) {
+      return hasher(node).child(node.getLeftOperand()).child(node.getRightOperand()).build(node);
+    }
+
+    @Override
+    public HashCode visitBlock(BlockTree node, Void p) {
+      return hasher(node).flag(node.isStatic()).children(node.getStatements()).build(node);
+    }
+
+    @Override
+    public HashCode visitBreak(BreakTree node, Void p) {
+      return hasher(node).name(node.getLabel()).build(node);
+    }
+
+    @SuppressWarnings("deprecation") // compared the same way by DiffVisitor
+    @Override
+    public HashCode visitCase(CaseTree node, Void p) {
+      return hasher(node).child(node.getExpression()).children(node.getStatements()).build(node);
+    }
+
+    @Override
+    public HashCode visitCatch(CatchTree node, Void p) {
+      return hasher(node).child(node.getParameter()).child(node.getBlock()).build(node);
+    }
+
+    @Override
+    public HashCode visitClass(ClassTree node, Void p) {
+      return hasher(node)
+          .name(node.getSimpleName())
+          .child(node.getModifiers())
+          .children(node.getTypeParameters())
+          .child(node.getExtendsClause())
+          .children(node.getImplementsClause())
+          .children(node.getMembers())
+          .build(node);
+    }
+
+    @Override
+    public HashCode visitConditionalExpression(ConditionalExpressionTree node, Void p) {
+      return hasher(node)
+          .child(node.getCondition())
+          .child(node.getTrueExpression())
+          .child(node.getFalseExpression())
+          .build(node);
+    }
+
+    @Override
+    public HashCode visitContinue(ContinueTree node, Void p) {
+      return hasher(node).name(node.getLabel()).build(node);
+    }
+
+    @Override
+    public HashCode visitDoWhileLoop(DoWhileLoopTree node, Void p) {
+      return hasher(node).child(node.getCondition()).child(node.getStatement()).build(node);
+    }
+
+    @Override
+    public HashCode visitErroneous(ErroneousTree node, Void p) {
+      return hasher(node).children(node.getErrorTrees()).build(node);
+    }
+
+    @Override
+    public HashCode visitExpressionStatement(ExpressionStatementTree node, Void p) {
+      return hasher(node).child(node.getExpression()).build(node);
+    }
+
+    @Override
+    public HashCode visitEnhancedForLoop(EnhancedForLoopTree node, Void p) {
+      return hasher(node)
+          .child(node.getVariable())
+          .child(node.getExpression())
+          .child(node.getStatement())
+          .build(node);
+    }
+
+    @Override
+    public HashCode visitForLoop(ForLoopTree node, Void p) {
+      return hasher(node)
+          .children(node.getInitializer())
+          .child(node.getCondition())
+          .children(node.getUpdate())
+          .child(node.getStatement())
+          .build(node);
+    }
+
+    @Override
+    public HashCode visitIdentifier(IdentifierTree node, Void p) {
+      return hasher(node).name(node.getName()).build(node);
+    }
+
+    @Override
+    public HashCode visitIf(IfTree node, Void p) {
+      return hasher(node)
+          .child(node.getCondition())
+          .child(node.getThenStatement())
+          .child(node.getElseStatement())
+          .build(node);
+    }
+
+    @Override
+    public HashCode visitImport(ImportTree node, Void p) {
+      return hasher(node).flag(node.isStatic()).child(node.getQualifiedIdentifier()).build(node);
+    }
+
+    @Override
+    public HashCode visitArrayAccess(ArrayAccessTree node, Void p) {
+      return hasher(node).child(node.getExpression()).child(node.getIndex()).build(node);
+    }
+
+    @Override
+    public HashCode visitLabeledStatement(LabeledStatementTree node, Void p) {
+      return hasher(node).name(node.getLabel()).child(node.getStatement()).build(node);
+    }
+
+    @Override
+    public HashCode visitLiteral(LiteralTree node, Void p) {
+      return hasher(node).value(node.getValue()).build(node);
+    }
+
+    @Override
+    public HashCode visitMethod(MethodTree node, Void p) {
+      return hasher(node)
+          .name(node.getName())
+          .child(node.getModifiers())
+          .child(node.getReturnType())
+          .children(node.getTypeParameters())
+          .children(node.getParameters())
+          .children(node.getThrows())
+          .child(node.getBody())
+          .child(node.getDefaultValue())
+          .build(node);
+    }
+
+    @Override
+    public HashCode visitModifiers(ModifiersTree node, Void p) {
+      return hasher(node).modifiers(node.getFlags()).children(node.getAnnotations()).build(node);
+    }
+
+    @Override
+    public HashCode visitNewArray(NewArrayTree node, Void p) {
+      return hasher(node)
+          .child(node.getType())
+          .children(node.getDimensions())
+          .children(node.getInitializers())
+          .build(node);
+    }
+
+    @Override
+    public HashCode visitNewClass(NewClassTree node, Void p) {
+      return hasher(node)
+          .child(node.getEnclosingExpression())
+          .children(node.getTypeArguments())
+          .child(node.getIdentifier())
+          .children(node.getArguments())
+          .child(node.getClassBody())
+          .build(node);
+    }
+
+    @Override
+    public HashCode visitParenthesized(ParenthesizedTree node, Void p) {
+      return hasher(node).child(node.getExpression()).build(node);
+    }
+
+    @Override
+    public HashCode visitReturn(ReturnTree node, Void p) {
+      return hasher(node).child(node.getExpression()).build(node);
+    }
+
+    @Override
+    public HashCode visitMemberSelect(MemberSelectTree node, Void p) {
+      return hasher(node).name(node.getIdentifier()).child(node.getExpression()).build(node);
+    }
+
+    @Override
+    public HashCode visitEmptyStatement(EmptyStatementTree node, Void p) {
+      return hasher(node).build(node);
+    }
+
+    @Override
+    public HashCode visitSwitch(SwitchTree node, Void p) {
+      return hasher(node).child(node.getExpression()).children(node.getCases()).build(node);
+    }
+
+    @Override
+    public HashCode visitSynchronized(SynchronizedTree node, Void p) {
+      return hasher(node).child(node.getExpression()).child(node.getBlock()).build(node);
+    }
+
+    @Override
+    public HashCode visitThrow(ThrowTree node, Void p) {
+      return hasher(node).child(node.getExpression()).build(node);
+    }
+
+    @Override
+    public HashCode visitCompilationUnit(CompilationUnitTree node, Void p) {
+      return hasher(node)
+          .children(node.getPackageAnnotations())
+          .child(node.getPackageName())
+          .children(node.getImports())
+          .children(node.getTypeDecls())
+          .build(node);
+    }
+
+    @Override
+    public HashCode visitTry(TryTree node, Void p) {
+      return hasher(node)
+          .child(node.getBlock())
+          .children(node.getCatches())
+          .child(node.getFinallyBlock())
+          .build(node);
+    }
+
+    @Override
+    public HashCode visitParameterizedType(ParameterizedTypeTree node, Void p) {
+      return hasher(node).child(node.getType()).children(node.getTypeArguments()).build(node);
+    }
+
+    @Override
+    public HashCode visitArrayType(ArrayTypeTree node, Void p) {
+      return hasher(node).child(node.getType()).build(node);
+    }
+
+    @Override
+    public HashCode visitTypeCast(TypeCastTree node, Void p) {
+      return hasher(node).child(node.getType()).child(node.getExpression()).build(node);
+    }
+
+    @Override
+    public HashCode visitPrimitiveType(PrimitiveTypeTree node, Void p) {
+      return hasher(node).ordinal(node.getPrimitiveTypeKind()).build(node);
+    }
+
+    @Override
+    public HashCode visitTypeParameter(TypeParameterTree node, Void p) {
+      return hasher(node).name(node.getName()).children(node.getBounds()).build(node);
+    }
+
+    @Override
+    public HashCode visitInstanceOf(InstanceOfTree node, Void p) {
+      return hasher(node).child(node.getExpression()).child(node.getType()).build(node);
+    }
+
+    @Override
+    public HashCode visitUnary(UnaryTree node, Void p) {
+      return hasher(node).child(node.getExpression()).build(node);
+    }
+
+    @Override
+    public HashCode visitVariable(VariableTree node, Void p) {
+      return hasher(node)
+          .name(node.getName())
+          .child(node.getModifiers())
+          .child(node.getType())
+          .child(node.getInitializer())
+          .build(node);
+    }
+
+    @Override
+    public HashCode visitWhileLoop(WhileLoopTree node, Void p) {
+      return hasher(node).child(node.getCondition()).child(node.getStatement()).build(node);
+    }
+
+    @Override
+    public HashCode visitWildcard(WildcardTree node, Void p) {
+      return hasher(node).child(node.getBound()).build(node);
+    }
+
+    /** Kinds without a specific comparison in {@code DiffVisitor} have no fingerprint. */
+    @Override
+    protected HashCode defaultAction(Tree node, Void p) {
+      return null;
+    }
+  }
+}
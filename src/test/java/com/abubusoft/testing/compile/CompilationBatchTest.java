@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.abubusoft.testing.compile.JavaSourcesSubjectFactory.javaSources;
+import static com.google.common.truth.Truth.assertAbout;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaFileObject;
+
+/**
+ * Tests {@link CompilationBatch}.
+ */
+@RunWith(JUnit4.class)
+public class CompilationBatchTest {
+  private static final JavaFileObject GOOD_SOURCE =
+      JavaFileObjects.forSourceLines("test.Good", "package test;", "", "final class Good {}");
+  private static final JavaFileObject BAD_SOURCE =
+      JavaFileObjects.forSourceLines("test.Bad", "package test;", "", "final class Bad {");
+
+  @Test
+  public void compile_testsEachCase() {
+    CompilationBatch batch = new CompilationBatch(2);
+    ImmutableList.Builder<CompilationBatch.Case> goodCases = ImmutableList.builder();
+    for (int i = 0; i < 4; i++) {
+      goodCases.add(batch.add(ImmutableList.of(GOOD_SOURCE), ImmutableSet.<Processor>of(),
+          ImmutableList.<String>of()));
+    }
+    CompilationBatch.Case badCase = batch.add(ImmutableList.of(BAD_SOURCE),
+        ImmutableSet.<Processor>of(), ImmutableList.<String>of());
+    batch.compile();
+
+    for (CompilationBatch.Case goodCase : goodCases.build()) {
+      goodCase.assertThat().compilesWithoutWarnings();
+    }
+    badCase.assertThat().failsToCompile().withErrorContaining("reached end of file")
+        .in(BAD_SOURCE).onLine(3);
+  }
+
+  @Test
+  public void assertThat_compilesOnDemand() {
+    CompilationBatch batch = new CompilationBatch();
+    CompilationBatch.Case onlyCase = batch.add(ImmutableList.of(GOOD_SOURCE),
+        ImmutableSet.<Processor>of(), ImmutableList.<String>of());
+    onlyCase.assertThat().compilesWithoutError();
+  }
+
+  @Test
+  public void assertThat_rethrowsProcessorExceptions() {
+    CompilationBatch batch = new CompilationBatch();
+    CompilationBatch.Case failingCase = batch.add(ImmutableList.of(GOOD_SOURCE),
+        ImmutableSet.of(new ThrowingProcessor()), ImmutableList.<String>of());
+    batch.compile();
+    try {
+      failingCase.assertThat().compilesWithoutError();
+      fail();
+    } catch (RuntimeException expected) {
+      assertThat(expected.getCause()).isInstanceOf(IllegalStateException.class);
+    }
+  }
+
+  @Test
+  public void precompiled_rejectsCompilationSettings() {
+    CompilationBatch batch = new CompilationBatch();
+    CompilationBatch.Case onlyCase = batch.add(ImmutableList.of(GOOD_SOURCE),
+        ImmutableSet.<Processor>of(), ImmutableList.<String>of());
+    try {
+      assertAbout(javaSources()).that(ImmutableList.of(GOOD_SOURCE))
+          .withCompilerOptions("-Xlint:none")
+          .precompiled(onlyCase.result());
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    JavaSourcesSubject subject = assertAbout(javaSources()).that(ImmutableList.of(GOOD_SOURCE));
+    subject.precompiled(onlyCase.result()).compilesWithoutError();
+    try {
+      subject.withDiagnosticLimit(1);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  private static final class ThrowingProcessor extends AbstractProcessor {
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+      throw new IllegalStateException("processor failure");
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+      return ImmutableSet.of("*");
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+      return SourceVersion.latestSupported();
+    }
+  }
+}
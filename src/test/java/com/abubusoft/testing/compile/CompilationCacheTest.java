@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.abubusoft.testing.compile.JavaSourceSubjectFactory.javaSource;
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.truth.Truth.assertAbout;
+import static com.google.common.truth.Truth.assertThat;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Tests {@link CompilationCache}.
+ */
+@RunWith(JUnit4.class)
+public class CompilationCacheTest {
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static final JavaFileObject SOURCE =
+      JavaFileObjects.forSourceLines("test.Cached", "package test;", "", "final class Cached {}");
+
+  @Test
+  public void compile_reusesEquivalentCompilation() {
+    CompilationCache cache = CompilationCache.inMemory(1 << 20);
+    Compilation.Result first = cache.compile(ImmutableSet.of(new CountingProcessor()),
+        ImmutableList.of("-Xlint"), ImmutableList.of(SOURCE));
+    int rounds = CountingProcessor.rounds.get();
+    Compilation.Result second = cache.compile(ImmutableSet.of(new CountingProcessor()),
+        ImmutableList.of("-Xlint"),
+        ImmutableList.of(JavaFileObjects.forSourceLines(
+            "test.Cached", "package test;", "", "final class Cached {}")));
+    assertThat(second).isSameAs(first);
+    assertThat(CountingProcessor.rounds.get()).isEqualTo(rounds);
+  }
+
+  @Test
+  public void compile_distinguishesOptionsSourcesAndProcessors() {
+    CompilationCache cache = CompilationCache.inMemory(1 << 20);
+    cache.compile(ImmutableSet.<Processor>of(), ImmutableList.of("-Xlint"),
+        ImmutableList.of(SOURCE));
+    cache.compile(ImmutableSet.<Processor>of(), ImmutableList.of("-Xlint", "-g"),
+        ImmutableList.of(SOURCE));
+    cache.compile(ImmutableSet.<Processor>of(new CountingProcessor()), ImmutableList.of("-Xlint"),
+        ImmutableList.of(SOURCE));
+    cache.compile(ImmutableSet.<Processor>of(), ImmutableList.of("-Xlint"),
+        ImmutableList.of(JavaFileObjects.forSourceLines(
+            "test.Cached", "package test;", "", "final class Cached { int i; }")));
+    assertThat(cache.size()).isEqualTo(4);
+  }
+
+  @Test
+  public void compile_distinguishesProcessorClassLoaders() throws Exception {
+    CompilationCache cache = CompilationCache.inMemory(1 << 20);
+    cache.compile(ImmutableSet.of(new CountingProcessor()), ImmutableList.<String>of(),
+        ImmutableList.of(SOURCE));
+    Class<?> reloaded = new ReloadingClassLoader(CountingProcessor.class).loadClass(
+        CountingProcessor.class.getName());
+    assertThat(reloaded).isNotEqualTo(CountingProcessor.class);
+    Constructor<?> constructor = reloaded.getDeclaredConstructor();
+    constructor.setAccessible(true);
+    cache.compile(ImmutableSet.of((Processor) constructor.newInstance()),
+        ImmutableList.<String>of(), ImmutableList.of(SOURCE));
+    assertThat(cache.size()).isEqualTo(2);
+    cache.compile(ImmutableSet.of((Processor) constructor.newInstance()),
+        ImmutableList.<String>of(), ImmutableList.of(SOURCE));
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void compile_evictsBeyondMaxGeneratedBytes() {
+    CompilationCache cache = CompilationCache.inMemory(0);
+    cache.compile(ImmutableSet.<Processor>of(), ImmutableList.<String>of(),
+        ImmutableList.of(SOURCE));
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void persistent_replaysStoredResults() throws IOException {
+    File directory = temporaryFolder.newFolder();
+    CompilationCache.persistent(directory, 1 << 20).compile(
+        ImmutableSet.of(new CountingProcessor()), ImmutableList.of("-Xlint"),
+        ImmutableList.of(SOURCE));
+    int rounds = CountingProcessor.rounds.get();
+    Compilation.Result replayed = CompilationCache.persistent(directory, 1 << 20).compile(
+        ImmutableSet.of(new CountingProcessor()), ImmutableList.of("-Xlint"),
+        ImmutableList.of(SOURCE));
+    assertThat(CountingProcessor.rounds.get()).isEqualTo(rounds);
+    assertThat(replayed.successful()).isTrue();
+    JavaFileObject classFile = Iterables.getOnlyElement(replayed.generatedFilesByKind().values());
+    assertThat(classFile.toUri().getPath()).endsWith("/test/Cached.class");
+    assertThat(JavaFileObjects.asByteSource(classFile).size()).isGreaterThan(0L);
+  }
+
+  @Test
+  public void persistent_replaysDiagnosticsOnSources() throws IOException {
+    File directory = temporaryFolder.newFolder();
+    JavaFileObject badSource =
+        JavaFileObjects.forSourceLines("test.Bad", "package test;", "", "final class Bad {");
+    CompilationCache.persistent(directory, 1 << 20).compile(ImmutableSet.<Processor>of(),
+        ImmutableList.of("-Xlint"), ImmutableList.of(badSource));
+    assertAbout(javaSource()).that(badSource)
+        .withCompilationCache(CompilationCache.persistent(directory, 1 << 20))
+        .failsToCompile()
+        .withErrorContaining("reached end of file").in(badSource).onLine(3);
+  }
+
+  @Test
+  public void persistent_replaysDiagnosticCounts() throws IOException {
+    File directory = temporaryFolder.newFolder();
+    JavaFileObject rawTypes = JavaFileObjects.forSourceLines("test.RawTypes",
+        "package test;",
+        "",
+        "final class RawTypes {",
+        "  java.util.List list;",
+        "  java.util.Set set;",
+        "}");
+    assertAbout(javaSource()).that(rawTypes)
+        .withCompilationCache(CompilationCache.persistent(directory, 1 << 20))
+        .withCompilerOptions("-Xlint:rawtypes")
+        .withDiagnosticLimit(1)
+        .compilesWithoutError();
+    assertAbout(javaSource()).that(rawTypes)
+        .withCompilationCache(CompilationCache.persistent(directory, 1 << 20))
+        .withCompilerOptions("-Xlint:rawtypes")
+        .withDiagnosticLimit(1)
+        .compilesWithoutError()
+        .withWarningCount(2)
+        .withWarningContaining("java.util.List");
+  }
+
+  @Test
+  public void persistent_recompilesCorruptResults() throws IOException {
+    ByteArrayOutputStream negativeLength = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(negativeLength);
+    out.writeInt(2); // format version
+    out.writeBoolean(true);
+    out.writeInt(1); // generated files
+    out.writeInt(-1); // length of the URI
+    ByteArrayOutputStream hugeLength = new ByteArrayOutputStream();
+    out = new DataOutputStream(hugeLength);
+    out.writeInt(2);
+    out.writeBoolean(true);
+    out.writeInt(Integer.MAX_VALUE);
+    ByteArrayOutputStream failedWithoutErrors = new ByteArrayOutputStream();
+    out = new DataOutputStream(failedWithoutErrors);
+    out.writeInt(2);
+    out.writeBoolean(false);
+    out.writeInt(0); // generated files
+    out.writeInt(0); // diagnostics
+    for (int i = 0; i < Diagnostic.Kind.values().length; i++) {
+      out.writeInt(0);
+    }
+    for (byte[] corrupt : ImmutableList.of("garbage".getBytes(UTF_8),
+        negativeLength.toByteArray(), hugeLength.toByteArray(),
+        failedWithoutErrors.toByteArray())) {
+      File directory = temporaryFolder.newFolder();
+      CompilationCache.persistent(directory, 1 << 20).compile(
+          ImmutableSet.of(new CountingProcessor()), ImmutableList.<String>of(),
+          ImmutableList.of(SOURCE));
+      File stored = Iterables.getOnlyElement(Arrays.asList(directory.listFiles()));
+      Files.write(corrupt, stored);
+      CountingProcessor.rounds.set(0);
+      Compilation.Result result = CompilationCache.persistent(directory, 1 << 20).compile(
+          ImmutableSet.of(new CountingProcessor()), ImmutableList.<String>of(),
+          ImmutableList.of(SOURCE));
+      assertThat(result.successful()).isTrue();
+      assertThat(CountingProcessor.rounds.get()).isGreaterThan(0);
+    }
+  }
+
+  @Test
+  public void persistent_evictsBeyondMaxBytes() throws IOException {
+    File directory = temporaryFolder.newFolder();
+    CompilationCache.persistent(directory, 0).compile(ImmutableSet.<Processor>of(),
+        ImmutableList.<String>of(), ImmutableList.of(SOURCE));
+    assertThat(directory.list()).isEmpty();
+  }
+
+  @Test
+  public void withCompilationCache() {
+    CompilationCache cache = CompilationCache.inMemory(1 << 20);
+    assertAbout(javaSource()).that(SOURCE)
+        .withCompilationCache(cache)
+        .compilesWithoutError();
+    assertAbout(javaSource()).that(SOURCE)
+        .withCompilationCache(cache)
+        .compilesWithoutError()
+        .and().generatesFileNamed(CLASS_OUTPUT, "test", "Cached.class");
+    assertThat(cache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void withCompilationCache_replaysGeneratedFiles() {
+    CompilationCache cache = CompilationCache.inMemory(1 << 20);
+    cache.compile(
+        ImmutableSet.<Processor>of(), ImmutableList.of("-Xlint"), ImmutableList.of(SOURCE));
+    final List<JavaFileObject> generatedFiles = new ArrayList<JavaFileObject>();
+    assertAbout(javaSource()).that(SOURCE)
+        .withCompilationCache(cache)
+        .withGeneratedFileConsumer(new CompileTester.GeneratedFileConsumer() {
+          @Override public void accept(JavaFileObject generatedFile) {
+            generatedFiles.add(generatedFile);
+          }
+        })
+        .compilesWithoutError();
+    assertThat(generatedFiles).hasSize(1);
+    assertThat(generatedFiles.get(0).toUri().getPath())
+        .isEqualTo("/CLASS_OUTPUT/test/Cached.class");
+  }
+
+  @Test
+  public void withCompilationCache_handsGeneratedFilesOverOnce() {
+    CompilationCache cache = CompilationCache.inMemory(1 << 20);
+    for (int i = 0; i < 2; i++) { // a cache miss, then a hit
+      final List<JavaFileObject> generatedFiles = new ArrayList<JavaFileObject>();
+      assertAbout(javaSource()).that(SOURCE)
+          .withCompilationCache(cache)
+          .withGeneratedFileConsumer(new CompileTester.GeneratedFileConsumer() {
+            @Override public void accept(JavaFileObject generatedFile) {
+              generatedFiles.add(generatedFile);
+            }
+          })
+          .compilesWithoutError();
+      assertThat(generatedFiles).hasSize(1);
+    }
+    assertThat(cache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void withCompilationCache_keysOutputStorage() throws IOException {
+    File directory = temporaryFolder.newFolder();
+    assertAbout(javaSource()).that(SOURCE)
+        .withCompilationCache(CompilationCache.persistent(directory, 1 << 20))
+        .compilesWithoutError();
+    assertAbout(javaSource()).that(SOURCE)
+        .withCompilationCache(CompilationCache.persistent(directory, 1 << 20))
+        .withOffHeapOutputs()
+        .compilesWithoutError();
+    assertAbout(javaSource()).that(SOURCE)
+        .withCompilationCache(CompilationCache.persistent(directory, 1 << 20))
+        .withOffHeapOutputs()
+        .compilesWithoutError()
+        .and().generatesFileNamed(CLASS_OUTPUT, "test", "Cached.class");
+    assertThat(directory.list()).hasLength(2);
+  }
+
+  /** Loads its own copy of one class, and delegates loading any other class. */
+  private static final class ReloadingClassLoader extends ClassLoader {
+    private final Class<?> reloaded;
+
+    ReloadingClassLoader(Class<?> reloaded) {
+      super(reloaded.getClassLoader());
+      this.reloaded = reloaded;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      if (!name.equals(reloaded.getName())) {
+        return super.loadClass(name, resolve);
+      }
+      synchronized (getClassLoadingLock(name)) {
+        Class<?> loaded = findLoadedClass(name);
+        if (loaded != null) {
+          return loaded;
+        }
+        try {
+          byte[] bytes = Resources.toByteArray(
+              reloaded.getResource("/" + reloaded.getName().replace('.', '/') + ".class"));
+          return defineClass(name, bytes, 0, bytes.length);
+        } catch (IOException e) {
+          throw new ClassNotFoundException(name, e);
+        }
+      }
+    }
+  }
+
+  private static final class CountingProcessor extends AbstractProcessor {
+    static final AtomicInteger rounds = new AtomicInteger();
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+      rounds.incrementAndGet();
+      return false;
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+      return ImmutableSet.of("*");
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+      return SourceVersion.latestSupported();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+
+/**
+ * Tests {@link CompilerPool}.
+ */
+@RunWith(JUnit4.class)
+public class CompilerPoolTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void release_returnsFileManagerToPool() {
+    StandardJavaFileManager fileManager =
+        CompilerPool.lease(new DiagnosticCollector<JavaFileObject>());
+    int idleCount = CompilerPool.idleCount();
+    CompilerPool.release(fileManager, ImmutableList.of("-Xlint"));
+    assertThat(CompilerPool.idleCount()).isEqualTo(idleCount + 1);
+  }
+
+  @Test
+  public void release_discardsReconfiguredFileManager() {
+    StandardJavaFileManager fileManager =
+        CompilerPool.lease(new DiagnosticCollector<JavaFileObject>());
+    int idleCount = CompilerPool.idleCount();
+    CompilerPool.release(fileManager, ImmutableList.of("-classpath", "."));
+    assertThat(CompilerPool.idleCount()).isEqualTo(idleCount);
+  }
+
+  @Test
+  public void compile_returnsFileManagerToPool() {
+    Compilation.compile(ImmutableSet.<Processor>of(), ImmutableList.<String>of(),
+        ImmutableList.of(JavaFileObjects.forSourceLines("test.First", "class First {}")));
+    assertThat(CompilerPool.idleCount()).isGreaterThan(0);
+    Compilation.Result result = Compilation.compile(ImmutableSet.<Processor>of(),
+        ImmutableList.<String>of(),
+        ImmutableList.of(JavaFileObjects.forSourceLines("test.Second", "class Second {}")));
+    assertThat(result.successful()).isTrue();
+    assertThat(result.generatedFilesByKind().values()).hasSize(1);
+  }
+
+  @Test
+  public void compile_reportsFileManagerDiagnostics() throws IOException {
+    File library = temporaryFolder.newFile("library.jar");
+    Files.write("not a zip file", library, UTF_8);
+    Compilation.Result result = Compilation.compile(ImmutableSet.<Processor>of(),
+        ImmutableList.of("-classpath", library.getPath()),
+        ImmutableList.of(JavaFileObjects.forSourceLines("test.Third", "class Third {}")));
+    // reported by the standard file manager itself when it fails to open the class path
+    assertThat(result.diagnosticIndex().withMessageContaining(
+        Diagnostic.Kind.ERROR, "error reading " + library.getPath())).hasSize(1);
+  }
+}
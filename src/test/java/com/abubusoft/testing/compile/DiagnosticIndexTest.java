@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+
+/**
+ * Tests {@link DiagnosticIndex}.
+ */
+@RunWith(JUnit4.class)
+public class DiagnosticIndexTest {
+  private static final JavaFileObject RAW_TYPES = JavaFileObjects.forSourceLines("test.RawTypes",
+      "package test;",
+      "",
+      "import java.util.List;",
+      "",
+      "final class RawTypes {",
+      "  List first;",
+      "  List second;",
+      "}");
+  private static final JavaFileObject OTHER = JavaFileObjects.forSourceLines("test.Other",
+      "package test;",
+      "",
+      "final class Other {",
+      "  java.util.Set set;",
+      "}");
+
+  @Test
+  public void indexesByKindFileAndLine() {
+    Compilation.Result result = Compilation.compile(ImmutableSet.<Processor>of(),
+        ImmutableList.of("-Xlint:rawtypes"), ImmutableList.of(RAW_TYPES, OTHER));
+    DiagnosticIndex index = result.diagnosticIndex();
+    assertThat(result.diagnosticIndex()).isSameAs(index);
+
+    assertThat(index.messages(Kind.WARNING)).hasSize(3);
+    assertThat(index.withMessageContaining(Kind.WARNING, "raw type")).hasSize(3);
+    assertThat(index.withMessageContaining(Kind.WARNING, "java.util.Set")).hasSize(1);
+    assertThat(index.withMessageContaining(Kind.ERROR, "raw type")).isEmpty();
+
+    ImmutableListMultimap<Long, Diagnostic<? extends JavaFileObject>> inFile =
+        index.inFile(Kind.WARNING, RAW_TYPES.toUri().getPath());
+    assertThat(inFile.keySet()).containsExactly(6L, 7L).inOrder();
+    Diagnostic<? extends JavaFileObject> onLine = inFile.get(7L).get(0);
+    assertThat(index.message(onLine)).isEqualTo(onLine.getMessage(null));
+    assertThat(index.inFile(Kind.NOTE, RAW_TYPES.toUri().getPath())).isEmpty();
+    assertThat(index.inFile(Kind.WARNING, "/test/Missing.java")).isEmpty();
+  }
+}
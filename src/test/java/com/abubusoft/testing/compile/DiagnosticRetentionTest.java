@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.google.common.truth.Truth.assertThat;
+import static javax.tools.Diagnostic.NOPOS;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.regex.Pattern;
+
+import javax.tools.Diagnostic;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+
+/**
+ * Tests {@link DiagnosticRetention}.
+ */
+@RunWith(JUnit4.class)
+public class DiagnosticRetentionTest {
+  @Test
+  public void keepsFirstOfEachKindAndMatches() {
+    DiagnosticRetention.Collector collector =
+        new DiagnosticRetention(2, ImmutableList.of(Pattern.compile("keep"))).newCollector();
+    Diagnostic<JavaFileObject> first = diagnostic(Kind.WARNING, "first");
+    Diagnostic<JavaFileObject> second = diagnostic(Kind.WARNING, "second");
+    Diagnostic<JavaFileObject> kept = diagnostic(Kind.WARNING, "please keep me");
+    Diagnostic<JavaFileObject> error = diagnostic(Kind.ERROR, "error");
+    collector.report(first);
+    collector.report(second);
+    collector.report(diagnostic(Kind.WARNING, "third"));
+    collector.report(kept);
+    collector.report(error);
+
+    assertThat(collector.getDiagnosticsByKind().get(Kind.WARNING))
+        .containsExactly(first, second, kept).inOrder();
+    assertThat(collector.getDiagnosticsByKind().get(Kind.ERROR)).containsExactly(error);
+    assertThat(collector.getCounts().count(Kind.WARNING)).isEqualTo(4);
+    assertThat(collector.getCounts().count(Kind.ERROR)).isEqualTo(1);
+    assertThat(collector.getCounts().count(Kind.NOTE)).isEqualTo(0);
+  }
+
+  @Test
+  public void detached_keepsCopies() {
+    DiagnosticRetention retention = DiagnosticRetention.ALL.detached();
+    assertThat(retention.detached()).isSameAs(retention);
+    DiagnosticRetention.Collector collector = retention.newCollector();
+    Diagnostic<JavaFileObject> reported = diagnostic(Kind.NOTE, "note");
+    collector.report(reported);
+
+    Diagnostic<? extends JavaFileObject> kept =
+        collector.getDiagnosticsByKind().get(Kind.NOTE).get(0);
+    assertThat(kept).isNotSameAs(reported);
+    assertThat(kept).isInstanceOf(DetachedDiagnostic.class);
+    assertThat(kept.getMessage(null)).isEqualTo("note");
+    assertThat(kept.getLineNumber()).isEqualTo(reported.getLineNumber());
+  }
+
+  @Test
+  public void all_keepsReportedDiagnostics() {
+    DiagnosticRetention.Collector collector = DiagnosticRetention.ALL.newCollector();
+    Diagnostic<JavaFileObject> reported = diagnostic(Kind.NOTE, "note");
+    collector.report(reported);
+    assertThat(collector.getDiagnosticsByKind().get(Kind.NOTE).get(0)).isSameAs(reported);
+  }
+
+  private static Diagnostic<JavaFileObject> diagnostic(Kind kind, String message) {
+    return new DetachedDiagnostic(
+        kind, null, NOPOS, NOPOS, NOPOS, 3, 7, null, message, kind + ": " + message);
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.abubusoft.testing.compile.JavaSourceSubjectFactory.javaSource;
+import static com.google.common.truth.Truth.assertAbout;
+import static com.google.common.truth.Truth.assertThat;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.annotation.processing.Processor;
+import javax.tools.JavaFileObject;
+
+/**
+ * Tests {@link InMemoryClasspath}.
+ */
+@RunWith(JUnit4.class)
+public class InMemoryClasspathTest {
+  private static final JavaFileObject MARKER = JavaFileObjects.forSourceLines("dep.Marker",
+      "package dep;",
+      "",
+      "public @interface Marker {}");
+  private static final JavaFileObject BASE = JavaFileObjects.forSourceLines("dep.sub.Base",
+      "package dep.sub;",
+      "",
+      "public abstract class Base {",
+      "  public static class Nested {}",
+      "  protected abstract int value();",
+      "}");
+  private static final JavaFileObject USER = JavaFileObjects.forSourceLines("test.User",
+      "package test;",
+      "",
+      "import dep.Marker;",
+      "import dep.sub.Base;",
+      "",
+      "@Marker",
+      "final class User extends Base {",
+      "  Base.Nested nested;",
+      "  @Override protected int value() { return 1; }",
+      "}");
+
+  @Test
+  public void compile_indexesClassFiles() {
+    InMemoryClasspath classpath = InMemoryClasspath.compile(MARKER, BASE);
+    assertThat(classpath.classFiles()).hasSize(3);
+    assertThat(classpath.classFile("dep.sub.Base$Nested").isPresent()).isTrue();
+    assertThat(classpath.classFile("dep.Missing").isPresent()).isFalse();
+    assertThat(classpath.classFiles("dep", false)).hasSize(1);
+    assertThat(classpath.classFiles("dep", true)).hasSize(3);
+    assertThat(classpath.classFiles("de", true)).isEmpty();
+  }
+
+  @Test
+  public void classFiles_inWriteOrder() {
+    JavaFileObject other = JavaFileObjects.forSourceLines("dep.Other",
+        "package dep;",
+        "",
+        "public final class Other {}");
+    ImmutableList<JavaFileObject> written = Compilation.compile(ImmutableSet.<Processor>of(),
+        ImmutableList.of("-proc:none"), ImmutableList.of(MARKER, BASE, other))
+        .generatedFilesByKind().get(JavaFileObject.Kind.CLASS);
+    ImmutableList.Builder<String> writtenPaths = ImmutableList.builder();
+    for (JavaFileObject classFile : written) {
+      writtenPaths.add(classFile.toUri().getPath());
+    }
+    ImmutableList.Builder<String> classFilePaths = ImmutableList.builder();
+    for (JavaFileObject classFile : InMemoryClasspath.compile(MARKER, BASE, other).classFiles()) {
+      classFilePaths.add(classFile.toUri().getPath());
+    }
+    assertThat(classFilePaths.build()).containsExactlyElementsIn(writtenPaths.build()).inOrder();
+  }
+
+  @Test
+  public void compile_failsForBrokenSources() {
+    try {
+      InMemoryClasspath.compile(JavaFileObjects.forSourceLines("dep.Broken", "class Broken {"));
+      fail();
+    } catch (IllegalStateException expected) {
+      assertThat(expected.getMessage()).contains("error while compiling the class path");
+    }
+  }
+
+  @Test
+  public void withClasspath() {
+    InMemoryClasspath classpath = InMemoryClasspath.compile(MARKER, BASE);
+    assertAbout(javaSource()).that(USER)
+        .withClasspath(classpath)
+        .compilesWithoutError()
+        .and().generatesFileNamed(CLASS_OUTPUT, "test", "User.class");
+  }
+
+  @Test
+  public void withoutClasspath_failsToCompile() {
+    assertAbout(javaSource()).that(USER)
+        .failsToCompile()
+        .withErrorContaining("package dep does not exist");
+  }
+
+  @Test
+  public void withClasspath_keysCompilationCache() {
+    CompilationCache cache = CompilationCache.inMemory(1 << 20);
+    assertAbout(javaSource()).that(USER)
+        .withCompilationCache(cache)
+        .failsToCompile();
+    assertAbout(javaSource()).that(USER)
+        .withCompilationCache(cache)
+        .withClasspath(InMemoryClasspath.compile(MARKER, BASE))
+        .compilesWithoutError();
+    assertThat(cache.size()).isEqualTo(2);
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.google.common.truth.Truth.assertThat;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_OUTPUT;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.JavaFileManager.Location;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.StandardJavaFileManager;
+
+/**
+ * Tests {@link InMemoryJavaFileManager}.
+ */
+@RunWith(JUnit4.class)
+public class InMemoryJavaFileManagerTest {
+  private static final int THREADS = 8;
+  private static final int FILES_PER_THREAD = 50;
+
+  private StandardJavaFileManager standardFileManager;
+  private InMemoryJavaFileManager fileManager;
+
+  @Before
+  public void setUp() {
+    standardFileManager = CompilerPool.lease(new DiagnosticCollector<JavaFileObject>());
+    fileManager = new InMemoryJavaFileManager(standardFileManager);
+  }
+
+  @After
+  public void tearDown() {
+    CompilerPool.release(standardFileManager, ImmutableSet.<String>of());
+  }
+
+  @Test
+  public void outputFilesAreSharedAndReadableAcrossThreads() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    try {
+      for (int thread = 0; thread < THREADS; thread++) {
+        final int threadNumber = thread;
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override public Void call() throws Exception {
+            start.await();
+            for (int i = 0; i < FILES_PER_THREAD; i++) {
+              // every thread writes a file of its own, and races the others to write a shared one
+              JavaFileObject own = fileManager.getJavaFileForOutput(
+                  SOURCE_OUTPUT, "test.Own" + threadNumber + "_" + i, Kind.SOURCE, null);
+              writeText(own, contents(threadNumber, i));
+              assertThat(own.getCharContent(false).toString())
+                  .isEqualTo(contents(threadNumber, i));
+              assertThat(fileManager.list(SOURCE_OUTPUT, "test", EnumSet.of(Kind.SOURCE), false))
+                  .contains(own);
+              JavaFileObject shared = fileManager.getJavaFileForOutput(
+                  SOURCE_OUTPUT, "test.Shared" + i, Kind.SOURCE, null);
+              writeText(shared, contents(threadNumber, i));
+              assertThat(fileManager.list(SOURCE_OUTPUT, "test", EnumSet.of(Kind.SOURCE), false))
+                  .contains(shared);
+            }
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    int fileCount = (THREADS + 1) * FILES_PER_THREAD;
+    assertThat(fileManager.getOutputFiles()).hasSize(fileCount);
+    assertThat(fileManager.list(SOURCE_OUTPUT, "test", EnumSet.of(Kind.SOURCE), false))
+        .containsExactlyElementsIn(fileManager.getOutputFiles());
+    for (int thread = 0; thread < THREADS; thread++) {
+      for (int i = 0; i < FILES_PER_THREAD; i++) {
+        JavaFileObject own = fileManager.getJavaFileForInput(
+            SOURCE_OUTPUT, "test.Own" + thread + "_" + i, Kind.SOURCE);
+        assertThat(own.getCharContent(false).toString()).isEqualTo(contents(thread, i));
+        assertThat(own.getLastModified()).isGreaterThan(0L);
+      }
+    }
+    for (int i = 0; i < FILES_PER_THREAD; i++) {
+      // the last write wins as a whole, never interleaved with another
+      Set<String> written = new HashSet<String>();
+      for (int thread = 0; thread < THREADS; thread++) {
+        written.add(contents(thread, i));
+      }
+      JavaFileObject shared =
+          fileManager.getJavaFileForInput(SOURCE_OUTPUT, "test.Shared" + i, Kind.SOURCE);
+      assertThat(written).contains(shared.getCharContent(false).toString());
+    }
+  }
+
+  @Test
+  public void closingTwiceHandsFileOverOnce() throws IOException {
+    final List<JavaFileObject> handedOver = new ArrayList<JavaFileObject>();
+    InMemoryJavaFileManager consumingFileManager = new InMemoryJavaFileManager(
+        standardFileManager, ImmutableList.<InMemoryClasspath>of(),
+        Optional.<CompileTester.GeneratedFileConsumer>of(
+            new CompileTester.GeneratedFileConsumer() {
+              @Override public void accept(JavaFileObject generatedFile) {
+                handedOver.add(generatedFile);
+              }
+            }),
+        InMemoryJavaFileManager.OutputStorage.HEAP);
+    JavaFileObject classFile =
+        consumingFileManager.getJavaFileForOutput(CLASS_OUTPUT, "test.A", Kind.CLASS, null);
+    OutputStream output = classFile.openOutputStream();
+    output.write(1);
+    output.close();
+    output.close();
+    JavaFileObject source =
+        consumingFileManager.getJavaFileForOutput(SOURCE_OUTPUT, "test.A", Kind.SOURCE, null);
+    Writer writer = source.openWriter();
+    writer.write("class A {}");
+    writer.close();
+    writer.close();
+    assertThat(handedOver).containsExactly(classFile, source).inOrder();
+  }
+
+  private static String contents(int thread, int file) {
+    return "// written by thread " + thread + "\nclass Generated" + file + " {}";
+  }
+
+  private static void writeText(JavaFileObject file, String text) throws IOException {
+    Writer writer = file.openWriter();
+    writer.write(text);
+    writer.close();
+  }
+
+  @Test
+  public void outputFilesKeepTheirCreationOrder() throws IOException {
+    JavaFileObject first =
+        fileManager.getJavaFileForOutput(CLASS_OUTPUT, "test.B", Kind.CLASS, null);
+    FileObject second =
+        fileManager.getFileForOutput(CLASS_OUTPUT, "test", "META-INF/resource.txt", null);
+    JavaFileObject third =
+        fileManager.getJavaFileForOutput(SOURCE_OUTPUT, "A", Kind.SOURCE, null);
+    assertThat(fileManager.getOutputFiles()).containsExactly(first, second, third).inOrder();
+    assertThat(fileManager.getJavaFileForOutput(CLASS_OUTPUT, "test.B", Kind.CLASS, null))
+        .isSameAs(first);
+  }
+
+  @Test
+  public void sameFileByEitherName() throws IOException {
+    JavaFileObject classFile =
+        fileManager.getJavaFileForOutput(CLASS_OUTPUT, "test.sub.A", Kind.CLASS, null);
+    assertThat(fileManager.getFileForOutput(CLASS_OUTPUT, "test.sub", "A.class", null))
+        .isSameAs(classFile);
+    assertThat(fileManager.getFileForOutput(CLASS_OUTPUT, "test", "sub/A.class", null))
+        .isSameAs(classFile);
+    assertThat(fileManager.getJavaFileForInput(CLASS_OUTPUT, "test.sub.A", Kind.CLASS))
+        .isSameAs(classFile);
+    assertThat(fileManager.getFileForInput(CLASS_OUTPUT, "test.sub", "A.java")).isNull();
+    assertThat(classFile.toUri().getPath()).isEqualTo("/CLASS_OUTPUT/test/sub/A.class");
+  }
+
+  @Test
+  public void sameUriForDefaultPackageFileByEitherName() throws IOException {
+    FileObject byFileName = fileManager.getFileForOutput(CLASS_OUTPUT, "", "A.class", null);
+    JavaFileObject byClassName =
+        fileManager.getJavaFileForOutput(CLASS_OUTPUT, "A", Kind.CLASS, null);
+    assertThat(byClassName).isSameAs(byFileName);
+    assertThat(byFileName.toUri().getPath()).isEqualTo("/CLASS_OUTPUT/A.class");
+
+    JavaFileObject source = fileManager.getJavaFileForOutput(SOURCE_OUTPUT, "B", Kind.SOURCE, null);
+    assertThat(fileManager.getFileForOutput(SOURCE_OUTPUT, "", "B.java", null)).isSameAs(source);
+    assertThat(source.toUri().getPath()).isEqualTo("/SOURCE_OUTPUT/B.java");
+  }
+
+  @Test
+  public void list_outputLocation() throws IOException {
+    JavaFileObject topLevel = write(CLASS_OUTPUT, "test.A", Kind.CLASS);
+    JavaFileObject nested = write(CLASS_OUTPUT, "test.A$Nested", Kind.CLASS);
+    JavaFileObject inSubpackage = write(CLASS_OUTPUT, "test.sub.deeper.B", Kind.CLASS);
+    write(SOURCE_OUTPUT, "test.A", Kind.SOURCE);
+    write(CLASS_OUTPUT, "other.C", Kind.CLASS);
+    fileManager.getJavaFileForOutput(CLASS_OUTPUT, "test.Unwritten", Kind.CLASS, null);
+
+    assertThat(fileManager.list(CLASS_OUTPUT, "test", EnumSet.of(Kind.CLASS), false))
+        .containsExactly(topLevel, nested).inOrder();
+    assertThat(fileManager.list(CLASS_OUTPUT, "test", EnumSet.of(Kind.CLASS), true))
+        .containsExactly(topLevel, nested, inSubpackage);
+    assertThat(fileManager.list(CLASS_OUTPUT, "test", EnumSet.of(Kind.SOURCE), true)).isEmpty();
+    assertThat(fileManager.list(CLASS_OUTPUT, "test.sub", EnumSet.of(Kind.CLASS), false))
+        .isEmpty();
+  }
+
+  @Test
+  public void inferBinaryName_outputFile() throws IOException {
+    assertThat(fileManager.inferBinaryName(
+        CLASS_OUTPUT, write(CLASS_OUTPUT, "test.A$Nested", Kind.CLASS)))
+        .isEqualTo("test.A$Nested");
+    assertThat(fileManager.inferBinaryName(
+        SOURCE_OUTPUT, write(SOURCE_OUTPUT, "TopLevel", Kind.SOURCE)))
+        .isEqualTo("TopLevel");
+  }
+
+  @Test
+  public void deletedFilesHaveNoContents() throws IOException {
+    JavaFileObject classFile =
+        fileManager.getJavaFileForOutput(CLASS_OUTPUT, "test.C", Kind.CLASS, null);
+    OutputStream output = classFile.openOutputStream();
+    output.write(new byte[] {1, 2, 3});
+    output.close();
+    assertThat(JavaFileObjects.asByteSource(classFile).read()).isEqualTo(new byte[] {1, 2, 3});
+    assertThat(classFile.delete()).isTrue();
+    assertThat(classFile.getLastModified()).isEqualTo(0L);
+    try {
+      classFile.openInputStream();
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  private JavaFileObject write(Location location, String className, Kind kind)
+      throws IOException {
+    JavaFileObject file = fileManager.getJavaFileForOutput(location, className, kind, null);
+    OutputStream output = file.openOutputStream();
+    output.write(0);
+    output.close();
+    return file;
+  }
+}
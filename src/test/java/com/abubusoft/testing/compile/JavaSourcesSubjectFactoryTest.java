@@ -30,6 +30,7 @@ import com.abubusoft.testing.compile.JavaSourcesSubjectFactory;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
 import com.google.common.truth.FailureStrategy;
 import com.google.common.truth.TestVerb;
@@ -40,10 +41,14 @@ import org.junit.runners.JUnit4;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.Messager;
@@ -71,6 +76,16 @@ public class JavaSourcesSubjectFactoryTest {
     }
   });
   
+  private static final JavaFileObject RAW_TYPES = JavaFileObjects.forSourceLines("test.RawTypes",
+      "package test;",
+      "",
+      "final class RawTypes {",
+      "  java.util.List list;",
+      "  java.util.Set set;",
+      "  java.util.Map map;",
+      "  java.util.Collection collection;",
+      "  Iterable iterable;",
+      "}");
   private static final JavaFileObject HELLO_WORLD =
       JavaFileObjects.forSourceLines(
           "test.HelloWorld",
@@ -207,6 +222,98 @@ public class JavaSourcesSubjectFactoryTest {
     }
   }
 
+  @Test
+  public void compilesWithoutError_warningOnLineOfAnotherFile() {
+    JavaFileObject rawTypes = JavaFileObjects.forSourceLines("test.RawTypes",
+        "package test;",
+        "",
+        "final class RawTypes {",
+        "  java.util.List list;",
+        "}");
+    JavaFileObject otherRawTypes = JavaFileObjects.forSourceLines("test.OtherRawTypes",
+        "package test;",
+        "",
+        "final class OtherRawTypes {",
+        "",
+        "  java.util.List list;",
+        "}");
+    try {
+      VERIFY
+          .about(JavaSourcesSubjectFactory.javaSources())
+          .that(ImmutableList.of(rawTypes, otherRawTypes))
+          .withCompilerOptions("-Xlint:rawtypes")
+          .compilesWithoutError()
+          .withWarningContaining("raw type")
+          .in(rawTypes)
+          .onLine(5);
+      fail();
+    } catch (VerificationException expected) {
+      assertThat(expected.getMessage())
+          .contains(String.format("Expected a warning on line 5 of %s", rawTypes.getName()));
+      assertThat(expected.getMessage()).contains("[4]");
+    }
+  }
+
+  @Test
+  public void compilesWithoutError_withDiagnosticLimit() {
+    assertAbout(javaSource())
+        .that(RAW_TYPES)
+        .withCompilerOptions("-Xlint:rawtypes")
+        .withDiagnosticLimit(2, Pattern.compile("raw type: java\\.lang\\.Iterable"))
+        .compilesWithoutError()
+        .withWarningCount(5)
+        .withWarningContaining("java.util.Set").in(RAW_TYPES).onLine(5)
+        .and()
+        .withWarningContaining("java.lang.Iterable").in(RAW_TYPES).onLine(8);
+  }
+
+  @Test
+  public void compilesWithoutError_withDiagnosticLimit_dropsOtherDiagnostics() {
+    try {
+      VERIFY
+          .about(javaSource())
+          .that(RAW_TYPES)
+          .withCompilerOptions("-Xlint:rawtypes")
+          .withDiagnosticLimit(2)
+          .compilesWithoutError()
+          .withWarningContaining("java.util.Map");
+      fail();
+    } catch (VerificationException expected) {
+      assertThat(expected.getMessage())
+          .startsWith("Expected a warning containing \"java.util.Map\", but only found:\n");
+    }
+    try {
+      VERIFY
+          .about(javaSource())
+          .that(RAW_TYPES)
+          .withCompilerOptions("-Xlint:rawtypes")
+          .withDiagnosticLimit(2)
+          .compilesWithoutError()
+          .withWarningCount(1);
+      fail();
+    } catch (VerificationException expected) {
+      assertThat(expected.getMessage())
+          .contains("Expected 1 warnings, but found the following 5 warnings:\n");
+      assertThat(expected.getMessage()).endsWith("(and 3 more that were not kept)\n");
+    }
+  }
+
+  @Test
+  public void failsToCompile_withDetachedResults() {
+    JavaFileObject source = JavaFileObjects.forSourceLines("test.Mismatch",
+        "package test;",
+        "",
+        "final class Mismatch {",
+        "  int value() { return \"not an int\"; }",
+        "}");
+    assertAbout(javaSource())
+        .that(source)
+        .withDetachedResults()
+        .failsToCompile()
+        .withErrorCount(1)
+        .withErrorContaining("incompatible types").in(source).onLine(4).atColumn(24);
+  }
+
   @Test
   public void compilesWithoutError_warningNotAtColumn() {
     try {
@@ -452,6 +559,66 @@ public class JavaSourcesSubjectFactoryTest {
     }
   }
 
+  @Test
+  public void parsesAs_failsWithAmbiguousCandidates() {
+    try {
+      VERIFY.about(JavaSourcesSubjectFactory.javaSources())
+          .that(ImmutableList.of(
+              JavaFileObjects.forSourceLines("test.First", "package test;", "class Twice {}"),
+              JavaFileObjects.forSourceLines("test.Second", "package test;", "class Twice {}")))
+          .parsesAs(
+              JavaFileObjects.forSourceLines("test.Twice", "package test;", "class Twice {}"));
+      fail();
+    } catch (VerificationException expected) {
+      assertThat(expected.getMessage()).contains("More than one source declared the same");
+      assertThat(expected.getMessage()).contains("test/First.java");
+      assertThat(expected.getMessage()).contains("test/Second.java");
+    }
+  }
+
+  @Test
+  public void parsesAs_withMemberAlignment() {
+    try {
+      VERIFY.about(javaSource())
+          .that(JavaFileObjects.forSourceLines("test.Aligned",
+              "package test;",
+              "class Aligned {",
+              "  int inserted;",
+              "  int first;",
+              "  int second;",
+              "}"))
+          .withMemberAlignment()
+          .parsesAs(JavaFileObjects.forSourceLines("test.Aligned",
+              "package test;",
+              "class Aligned {",
+              "  int first;",
+              "  int second;",
+              "}"));
+      fail();
+    } catch (VerificationException expected) {
+      assertThat(expected.getMessage()).contains("Found 1 unmatched nodes in the actual tree");
+      assertThat(expected.getMessage()).doesNotContain("nodes that differed");
+    }
+  }
+
+  @Test
+  public void parsesAs_withUnorderedMembers() {
+    assertAbout(javaSource())
+        .that(JavaFileObjects.forSourceLines("test.Unordered",
+            "package test;",
+            "class Unordered {",
+            "  void second() {}",
+            "  int first;",
+            "}"))
+        .withUnorderedMembers()
+        .parsesAs(JavaFileObjects.forSourceLines("test.Unordered",
+            "package test;",
+            "class Unordered {",
+            "  int first;",
+            "  void second() {}",
+            "}"));
+  }
+
   @Test
   public void failsToCompile_throws() {
     try {
@@ -833,6 +1000,50 @@ public class JavaSourcesSubjectFactoryTest {
     }
   }
 
+  @Test
+  public void generatesSources_withMaxDifferences() {
+    try {
+      VERIFY.about(javaSource())
+          .that(JavaFileObjects.forResource("HelloWorld.java"))
+          .withMaxDifferences(1)
+          .processedWith(new GeneratingProcessor())
+          .compilesWithoutError()
+          .and().generatesSources(JavaFileObjects.forSourceLines(
+              GeneratingProcessor.GENERATED_CLASS_NAME,
+              "public class Blah {",
+              "  int extra;",
+              "  int another;",
+              "}"));
+      fail();
+    } catch (VerificationException expected) {
+      assertThat(expected.getMessage()).contains("didn't match exactly");
+      assertThat(expected.getMessage()).contains("Stopped after the first 1 differences");
+    }
+  }
+
+  @Test
+  public void compilesWithoutError_withGeneratedFileConsumer() {
+    final List<String> generatedPaths = new ArrayList<String>();
+    assertAbout(javaSource())
+        .that(JavaFileObjects.forResource("HelloWorld.java"))
+        .withGeneratedFileConsumer(new CompileTester.GeneratedFileConsumer() {
+          @Override public void accept(JavaFileObject generatedFile) {
+            try {
+              assertThat(generatedFile.openInputStream().read()).isNotEqualTo(-1);
+            } catch (IOException e) {
+              throw new AssertionError(e);
+            }
+            generatedPaths.add(generatedFile.toUri().getPath());
+          }
+        })
+        .processedWith(new GeneratingProcessor())
+        .compilesWithoutError();
+    assertThat(generatedPaths).containsAllOf(
+        "/SOURCE_OUTPUT/Blah.java",
+        "/CLASS_OUTPUT/com/abubusoft/testing/compile/Foo",
+        "/CLASS_OUTPUT/Blah.class");
+  }
+
   @Test
   public void generatesSources_failWithNoCandidates() {
     String failingExpectationName = "ThisIsNotTheRightFile";
@@ -923,6 +1134,81 @@ public class JavaSourcesSubjectFactoryTest {
         .withContents(ByteSource.wrap("Bar".getBytes(UTF_8)));
   }
 
+  @Test
+  public void generatesFileNamed_withOffHeapOutputs() {
+    assertAbout(javaSource())
+        .that(JavaFileObjects.forResource("HelloWorld.java"))
+        .withOffHeapOutputs()
+        .processedWith(new GeneratingProcessor())
+        .compilesWithoutError()
+        .and()
+        .generatesFileNamed(CLASS_OUTPUT, "com.abubusoft.testing.compile", "Foo")
+        .withContents(ByteSource.wrap("Bar".getBytes(UTF_8)))
+        .and()
+        .generatesSources(JavaFileObjects.forSourceString(
+            GeneratingProcessor.GENERATED_CLASS_NAME, GeneratingProcessor.GENERATED_SOURCE));
+  }
+
+  @Test
+  public void generatedSourcesKeepTheirCharacters() throws IOException {
+    final List<JavaFileObject> generatedFiles = new ArrayList<JavaFileObject>();
+    assertAbout(javaSource())
+        .that(JavaFileObjects.forResource("HelloWorld.java"))
+        .withGeneratedFileConsumer(new CompileTester.GeneratedFileConsumer() {
+          @Override public void accept(JavaFileObject generatedFile) {
+            generatedFiles.add(generatedFile);
+          }
+        })
+        .processedWith(new GeneratingProcessor())
+        .compilesWithoutError()
+        .and()
+        .generatesFileNamed(CLASS_OUTPUT, "com.abubusoft.testing.compile", "Foo")
+        .withStringContents(Charset.defaultCharset(), GeneratingProcessor.GENERATED_RESOURCE);
+    JavaFileObject generatedSource = generatedFiles.get(0);
+    assertThat(generatedSource.getKind()).isEqualTo(JavaFileObject.Kind.SOURCE);
+    CharSequence contents = generatedSource.getCharContent(false);
+    assertThat(contents.toString()).isEqualTo(GeneratingProcessor.GENERATED_SOURCE);
+    assertThat(generatedSource.getCharContent(false)).isSameAs(contents);
+    assertThat(ByteStreams.toByteArray(generatedSource.openInputStream()))
+        .isEqualTo(GeneratingProcessor.GENERATED_SOURCE.getBytes(Charset.defaultCharset()));
+  }
+
+  @Test
+  public void compilesWithoutError_withoutCodeGeneration() {
+    final List<JavaFileObject> generatedFiles = new ArrayList<JavaFileObject>();
+    assertAbout(javaSource())
+        .that(JavaFileObjects.forResource("HelloWorld.java"))
+        .withoutCodeGeneration()
+        .withGeneratedFileConsumer(new CompileTester.GeneratedFileConsumer() {
+          @Override public void accept(JavaFileObject generatedFile) {
+            generatedFiles.add(generatedFile);
+          }
+        })
+        .processedWith(new GeneratingProcessor())
+        .compilesWithoutError()
+        .and()
+        .generatesSources(JavaFileObjects.forSourceString(
+            GeneratingProcessor.GENERATED_CLASS_NAME, GeneratingProcessor.GENERATED_SOURCE));
+    for (JavaFileObject generatedFile : generatedFiles) {
+      assertThat(generatedFile.getKind()).isNotEqualTo(JavaFileObject.Kind.CLASS);
+    }
+  }
+
+  @Test
+  public void failsToCompile_withoutCodeGeneration() {
+    JavaFileObject source = JavaFileObjects.forSourceLines("test.Mismatch",
+        "package test;",
+        "",
+        "final class Mismatch {",
+        "  int value() { return \"not an int\"; }",
+        "}");
+    assertAbout(javaSource())
+        .that(source)
+        .withoutCodeGeneration()
+        .failsToCompile()
+        .withErrorContaining("incompatible types").in(source).onLine(4);
+  }
+
   @Test
   public void generatesFileNamed_failOnFileExistence() {
     try {
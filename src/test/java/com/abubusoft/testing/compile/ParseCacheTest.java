@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests {@link ParseCache}.
+ */
+@RunWith(JUnit4.class)
+public class ParseCacheTest {
+  @Test
+  public void parse_reusesResultForSameContents() {
+    Compilation.ParseResult first = ParseCache.parse(
+        JavaFileObjects.forSourceLines("test.Golden", "package test;", "final class Golden {}"));
+    Compilation.ParseResult second = ParseCache.parse(
+        JavaFileObjects.forSourceLines("test.Golden", "package test;", "final class Golden {}"));
+    assertThat(second).isSameAs(first);
+  }
+
+  @Test
+  public void parse_distinguishesContents() {
+    Compilation.ParseResult first = ParseCache.parse(
+        JavaFileObjects.forSourceLines("test.Other", "package test;", "final class Other {}"));
+    Compilation.ParseResult second = ParseCache.parse(
+        JavaFileObjects.forSourceLines("test.Other", "package test;", "class Other {}"));
+    assertThat(second).isNotSameAs(first);
+  }
+
+  @Test
+  public void parse_doesNotCacheErrors() {
+    for (int i = 0; i < 2; i++) {
+      try {
+        ParseCache.parse(JavaFileObjects.forSourceLines("test.Broken", "class Broken {"));
+        fail();
+      } catch (IllegalStateException expected) {
+        assertThat(expected.getMessage()).contains("error while parsing");
+      }
+    }
+  }
+}
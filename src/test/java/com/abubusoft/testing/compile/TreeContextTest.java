@@ -24,6 +24,8 @@ import com.google.common.collect.ImmutableList;
 
 import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.TreePath;
 import com.sun.source.util.Trees;
 
 import org.junit.Rule;
@@ -86,6 +88,33 @@ public class TreeContextTest {
     treeContext().getNodeEndColumn(invalidNode());
   }
 
+  @Test
+  public void getPositionInfo_byPath() {
+    TreePath path = treeContext().getNodePath(compilationSubtree());
+    assertThat(treeContext().getNodeStartLine(path)).isEqualTo(subtreeStartLine());
+    assertThat(treeContext().getNodeEndLine(path)).isEqualTo(subtreeEndLine());
+    assertThat(treeContext().getNodeStartColumn(path)).isEqualTo(subtreeStartColumn());
+    assertThat(treeContext().getNodeEndColumn(path)).isEqualTo(subtreeEndColumn());
+  }
+
+  @Test
+  public void getPositionInfo_climbsPastNodesWithoutPositions() {
+    // the local variable has no modifiers, so its empty modifiers tree has no position
+    VariableTree variable = (VariableTree) MoreTrees.findSubtree(
+        COMPILATION_UNIT, Tree.Kind.VARIABLE, "variable");
+    TreeContext treeContext = treeContext();
+    assertThat(treeContext.getNodeStartPosition(variable.getModifiers()))
+        .isEqualTo(treeContext.getNodeStartPosition(variable));
+    assertThat(treeContext.getNodeEndPosition(variable.getModifiers()))
+        .isEqualTo(treeContext.getNodeEndPosition(variable));
+  }
+
+  @Test
+  public void getPositionInfo_invalidPath() {
+    expectedExn.expect(IllegalArgumentException.class);
+    treeContext().getNodeStartLine(new TreePath((CompilationUnitTree) invalidNode()));
+  }
+
   @Test
   public void getNodePath() {
     assertThat(treeContext().getNodePath(compilationSubtree()).getCompilationUnit())
@@ -23,7 +23,9 @@ import com.abubusoft.testing.compile.TreeDifference;
 import com.google.common.collect.ImmutableList;
 
 import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.MethodTree;
 import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
 import com.sun.source.util.TreePath;
 
 import org.junit.Rule;
@@ -154,6 +156,149 @@ public class TreeDifferTest {
         .inOrder();
   }
 
+  @Test
+  public void scan_differingNodePathsLeadFromRoot() {
+    TreeDifference diff = TreeDiffer.diffCompilationUnits(EXPECTED_TREE, ACTUAL_TREE);
+    for (TreeDifference.TwoWayDiff differingNode : diff.getDifferingNodes()) {
+      TreePath expectedPath = differingNode.getExpectedNodePath();
+      assertThat(ImmutableList.copyOf(expectedPath)).containsExactlyElementsIn(
+          TreePath.getPath(EXPECTED_TREE, expectedPath.getLeaf())).inOrder();
+      TreePath actualPath = differingNode.getActualNodePath();
+      assertThat(ImmutableList.copyOf(actualPath)).containsExactlyElementsIn(
+          TreePath.getPath(ACTUAL_TREE, actualPath.getLeaf())).inOrder();
+    }
+  }
+
+  @Test
+  public void scan_stopsAfterMaxDifferences() {
+    TreeDifference diff = TreeDiffer.diffCompilationUnits(EXPECTED_TREE, ACTUAL_TREE, 2);
+    assertThat(diff.isTruncated()).isTrue();
+    assertThat(diff.getExtraExpectedNodes().size() + diff.getExtraActualNodes().size()
+        + diff.getDifferingNodes().size()).isEqualTo(2);
+    assertThat(diff.getDiffReport()).contains("Stopped after the first 2 differences");
+
+    diff = TreeDiffer.diffCompilationUnits(EXPECTED_TREE, ACTUAL_TREE, 7);
+    assertThat(diff.isTruncated()).isFalse();
+    assertThat(diff.getDiffReport()).doesNotContain("Stopped after");
+  }
+
+  @Test
+  public void scan_alignedMembersReportOnlyTheInsertion() {
+    CompilationUnitTree expected = MoreTrees.parseLinesToTree("package test;",
+        "import java.util.List;",
+        "import java.util.Set;",
+        "",
+        "final class TestClass {",
+        "  int first() { return 1; }",
+        "  int second() { return 2; }",
+        "  int third() { return 3; }",
+        "}");
+    CompilationUnitTree actual = MoreTrees.parseLinesToTree("package test;",
+        "import java.util.List;",
+        "import java.util.Map;",
+        "import java.util.Set;",
+        "",
+        "final class TestClass {",
+        "  int inserted() { return 0; }",
+        "  int first() { return 1; }",
+        "  int second() {",
+        "    return 2;",
+        "  }",
+        "  int third() { return 4; }",
+        "}");
+    TreeDifference positional = TreeDiffer.diffCompilationUnits(expected, actual);
+    assertThat(positional.getDifferingNodes().size()).isGreaterThan(1);
+
+    TreeDifference aligned = TreeDiffer.diffCompilationUnits(
+        expected, actual, Integer.MAX_VALUE, TreeDiffer.MemberMatching.ALIGNED);
+    assertThat(aligned.getExtraExpectedNodes()).isEmpty();
+    ImmutableList.Builder<SimplifiedDiff> extraNodesFound = ImmutableList.builder();
+    for (TreeDifference.OneWayDiff extraNode : aligned.getExtraActualNodes()) {
+      extraNodesFound.add(SimplifiedDiff.create(extraNode));
+    }
+    assertThat(extraNodesFound.build()).containsExactly(
+        new SimplifiedDiff(Tree.Kind.IMPORT, ""),
+        new SimplifiedDiff(Tree.Kind.METHOD, "")).inOrder();
+    assertThat(aligned.getDifferingNodes()).hasSize(1);
+    assertThat(aligned.getDifferingNodes().get(0).getDetails())
+        .isEqualTo("Expected literal value to be <3> but was <4>.");
+  }
+
+  @Test
+  public void scan_alignedBlockStatements() {
+    CompilationUnitTree expected = MoreTrees.parseLinesToTree(
+        "class A {",
+        "  void f() {",
+        "    int a = 1;",
+        "    int b = 2;",
+        "    int c = 3;",
+        "  }",
+        "}");
+    CompilationUnitTree actual = MoreTrees.parseLinesToTree(
+        "class A {",
+        "  void f() {",
+        "    int a = 1;",
+        "    int c = 3;",
+        "  }",
+        "}");
+    TreeDifference diff = TreeDiffer.diffCompilationUnits(
+        expected, actual, Integer.MAX_VALUE, TreeDiffer.MemberMatching.ALIGNED);
+    assertThat(diff.getDifferingNodes()).isEmpty();
+    assertThat(diff.getExtraActualNodes()).isEmpty();
+    assertThat(diff.getExtraExpectedNodes()).hasSize(1);
+    assertThat(((VariableTree) diff.getExtraExpectedNodes().get(0).getNodePath().getLeaf())
+        .getName().toString()).isEqualTo("b");
+  }
+
+  @Test
+  public void scan_unorderedMembersMatchBySignature() {
+    CompilationUnitTree expected = MoreTrees.parseLinesToTree(
+        "class A {",
+        "  int count;",
+        "  int f(int x) { return x; }",
+        "  int f(long x) { return 1; }",
+        "  static class Nested {}",
+        "  void removed() {}",
+        "}");
+    CompilationUnitTree actual = MoreTrees.parseLinesToTree(
+        "class A {",
+        "  static class Nested {}",
+        "  int f(long x) { return 2; }",
+        "  void added() {}",
+        "  int f(int x) { return x; }",
+        "  int count;",
+        "}");
+    TreeDifference diff = TreeDiffer.diffCompilationUnits(
+        expected, actual, Integer.MAX_VALUE, TreeDiffer.MemberMatching.UNORDERED);
+    assertThat(diff.getDifferingNodes()).hasSize(1);
+    assertThat(diff.getDifferingNodes().get(0).getDetails())
+        .isEqualTo("Expected literal value to be <1> but was <2>.");
+    assertThat(diff.getExtraExpectedNodes()).hasSize(1);
+    assertThat(((MethodTree) diff.getExtraExpectedNodes().get(0).getNodePath().getLeaf())
+        .getName().toString()).isEqualTo("removed");
+    assertThat(diff.getExtraActualNodes()).hasSize(1);
+    assertThat(((MethodTree) diff.getExtraActualNodes().get(0).getNodePath().getLeaf())
+        .getName().toString()).isEqualTo("added");
+  }
+
+  @Test
+  public void scan_manyCompilationUnitsKeepTheirOrder() {
+    ImmutableList.Builder<CompilationUnitTree> expecteds = ImmutableList.builder();
+    ImmutableList.Builder<CompilationUnitTree> actuals = ImmutableList.builder();
+    for (int i = 0; i < 20; i++) {
+      expecteds.add(MoreTrees.parseLinesToTree("class A" + i + " { int x = " + i + "; }"));
+      actuals.add(MoreTrees.parseLinesToTree(
+          "class A" + i + " { int x = " + (i % 3 == 0 ? i + 100 : i) + "; }"));
+    }
+    ImmutableList<TreeDifference> diffs = TreeDiffer.diffCompilationUnits(expecteds.build(),
+        actuals.build(), Integer.MAX_VALUE, TreeDiffer.MemberMatching.POSITIONAL);
+    assertThat(diffs).hasSize(20);
+    for (int i = 0; i < 20; i++) {
+      assertThat(diffs.get(i).isEmpty()).isEqualTo(i % 3 != 0);
+    }
+    assertThat(diffs.get(3).getDifferingNodes().get(0).getDetails()).contains("<3>");
+  }
+
   @Test
   public void scan_testExtraFields() {
     TreeDifference diff =
@@ -33,6 +33,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A unit test for {@link TreeDifference}
  */
@@ -161,6 +164,41 @@ public class TreeDifferenceTest {
         .isEmpty()).isFalse();
   }
 
+  @Test
+  public void getDiffReport_nodeContentsFromSource() {
+    assertThat(onlyExpectedDiffs().getDiffReport(treeContext(), treeContext()))
+        .contains("Node contents: <public void nonsense() {\n"
+            + "        int[] numbers = {0, 1, 2, 3, 4};\n");
+  }
+
+  @Test
+  public void getDiffReport_capsNodeContents() {
+    List<String> lines = new ArrayList<String>();
+    lines.add("package test;");
+    lines.add("final class Large {");
+    for (int i = 0; i < 2 * TreeDifference.MAX_NODE_CONTENTS_LINES; i++) {
+      lines.add("  int field" + i + ";");
+    }
+    lines.add("}");
+    CompilationUnitTree large = MoreTrees.parseLinesToTree(lines);
+    TreeDifference diff = new TreeDifference.Builder()
+        .addExtraActualNode(MoreTrees.findSubtreePath(large, Tree.Kind.CLASS))
+        .build();
+    String lastField = "field" + (2 * TreeDifference.MAX_NODE_CONTENTS_LINES - 1) + ";";
+    assertThat(diff.getDiffReport()).contains("int field0;");
+    assertThat(diff.getDiffReport()).doesNotContain(lastField);
+    assertThat(diff.getDiffReport()).contains(" more lines]>.");
+
+    // the source excerpt is the class declaration line and the fields that fit after it
+    String sourceReport = diff.getDiffReport(null, treeContext(large));
+    assertThat(sourceReport)
+        .contains("field" + (TreeDifference.MAX_NODE_CONTENTS_LINES - 2) + ";");
+    assertThat(sourceReport)
+        .doesNotContain("field" + (TreeDifference.MAX_NODE_CONTENTS_LINES - 1) + ";");
+    assertThat(sourceReport)
+        .contains("[" + (TreeDifference.MAX_NODE_CONTENTS_LINES + 2) + " more lines]>.");
+  }
+
   private TreeDifference emptyDiff() {
     return new TreeDifference();
   }
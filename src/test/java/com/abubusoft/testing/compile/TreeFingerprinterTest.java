@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abubusoft.testing.compile;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.Tree;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Tests {@link TreeFingerprinter}.
+ */
+@RunWith(JUnit4.class)
+public class TreeFingerprinterTest {
+  private static final String[] SOURCE = {
+      "package test;",
+      "",
+      "final class TestClass {",
+      "  private static final long ANSWER = 42L;",
+      "",
+      "  int compute(int x) {",
+      "    return x > 0 ? (int) ANSWER : -x;",
+      "  }",
+      "}"};
+
+  @Test
+  public void equalTreesHaveEqualFingerprints() {
+    CompilationUnitTree first = MoreTrees.parseLinesToTree(SOURCE);
+    CompilationUnitTree second = MoreTrees.parseLinesToTree(
+        "package test;",
+        "final class TestClass {",
+        "  private static final long ANSWER =",
+        "      42L;",
+        "  int compute(int x) { return x > 0 ? (int) ANSWER : -x; }",
+        "}");
+    assertThat(TreeFingerprinter.computeFingerprints(first).get(first))
+        .isEqualTo(TreeFingerprinter.computeFingerprints(second).get(second));
+  }
+
+  @Test
+  public void differentTreesHaveDifferentFingerprints() {
+    CompilationUnitTree first = MoreTrees.parseLinesToTree(SOURCE);
+    assertThat(TreeFingerprinter.computeFingerprints(first).get(first))
+        .isNotEqualTo(rootFingerprint("package test;", "final class TestClass {",
+            "  private static final int ANSWER = 42;", "}"));
+    // the literal 42L and 42 differ in type only
+    assertThat(rootFingerprint("class A { long x = 42L; }"))
+        .isNotEqualTo(rootFingerprint("class A { long x = 42; }"));
+    assertThat(rootFingerprint("class A { void f() {} }"))
+        .isNotEqualTo(rootFingerprint("class A { static void f() {} }"));
+  }
+
+  @Test
+  public void subtreesOfDifferentTreesKeepTheirFingerprints() {
+    CompilationUnitTree first = MoreTrees.parseLinesToTree(SOURCE);
+    CompilationUnitTree second = MoreTrees.parseLinesToTree(
+        "package test;",
+        "final class TestClass {",
+        "  private static final long ANSWER = 43L;",
+        "  int compute(int x) { return x > 0 ? (int) ANSWER : -x; }",
+        "}");
+    Tree firstMethod = MoreTrees.findSubtree(first, Tree.Kind.METHOD);
+    Tree secondMethod = MoreTrees.findSubtree(second, Tree.Kind.METHOD);
+    assertThat(TreeFingerprinter.computeFingerprints(first).get(firstMethod))
+        .isEqualTo(TreeFingerprinter.computeFingerprints(second).get(secondMethod));
+  }
+
+  @Test
+  public void unsupportedKindsHaveNoFingerprint() {
+    CompilationUnitTree tree = MoreTrees.parseLinesToTree(
+        "class A {",
+        "  void f() {",
+        "    try {",
+        "    } catch (IllegalStateException | IllegalArgumentException e) {",
+        "    }",
+        "  }",
+        "  int i;",
+        "}");
+    assertThat(TreeFingerprinter.computeFingerprints(tree)).doesNotContainKey(tree);
+    assertThat(TreeFingerprinter.computeFingerprints(tree))
+        .containsKey(MoreTrees.findSubtree(tree, Tree.Kind.PRIMITIVE_TYPE));
+  }
+
+  @Test
+  public void diffCompilationUnits_equalTreesHaveNoDifferences() {
+    TreeDifference diff = TreeDiffer.diffCompilationUnits(
+        MoreTrees.parseLinesToTree(SOURCE), MoreTrees.parseLinesToTree(SOURCE));
+    assertThat(diff.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void fingerprintsOf_releasedWithTheTree() throws InterruptedException {
+    WeakReference<CompilationUnitTree> tree = fingerprintedTree();
+    for (int i = 0; tree.get() != null && i < 100; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertThat(tree.get()).isNull();
+  }
+
+  /** Fingerprints a new tree through the cache, and returns it without keeping it reachable. */
+  private static WeakReference<CompilationUnitTree> fingerprintedTree() {
+    CompilationUnitTree tree = MoreTrees.parseLinesToTree(SOURCE);
+    assertThat(TreeFingerprinter.fingerprintsOf(tree)).isNotEmpty();
+    return new WeakReference<CompilationUnitTree>(tree);
+  }
+
+  private static Object rootFingerprint(String... source) {
+    CompilationUnitTree tree = MoreTrees.parseLinesToTree(source);
+    return TreeFingerprinter.computeFingerprints(tree).get(tree);
+  }
+}